@@ -0,0 +1,70 @@
+package hudson.plugins.sametime.im;
+
+import hudson.plugins.sametime.tools.Assert;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * AnnouncementIMMessageTarget stands for a whole list of Im-Accounts that get the same message in one go,
+ * instead of one message each.
+ */
+public class AnnouncementIMMessageTarget implements IMMessageTarget
+{
+    private static final long serialVersionUID = 1L;
+    private final List<String> recipients;
+
+    /**
+     * Constructor.
+     * @param recipients the names of the accounts, not resolved yet
+     */
+    public AnnouncementIMMessageTarget(final List<String> recipients)
+    {
+        Assert.isNotNull(recipients, "Parameter 'recipients' must not be null.");
+        this.recipients = Collections.unmodifiableList(new ArrayList<String>(recipients));
+    }
+
+    /**
+     * @return the names of the accounts, in configuration order
+     */
+    public List<String> getRecipients()
+    {
+        return this.recipients;
+    }
+
+    @Override
+    public boolean equals(final Object arg0)
+    {
+        if (arg0 == this)
+        {
+            return true;
+        }
+        if (arg0 instanceof AnnouncementIMMessageTarget)
+        {
+            return this.recipients.equals(((AnnouncementIMMessageTarget) arg0).recipients);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.recipients.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (final String recipient : this.recipients)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(recipient);
+        }
+        return sb.toString();
+    }
+}
@@ -2,6 +2,10 @@ package hudson.plugins.sametime.im;
 
 import hudson.plugins.sametime.tools.Assert;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * {@inheritDoc}
  * @author doc
@@ -26,6 +30,24 @@ public class DefaultIMMessageTargetConverter implements IMMessageTargetConverter
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, IMMessageTarget> fromStrings(final Collection<String> targetsAsStrings) throws IMMessageTargetConversionException
+    {
+        Assert.isNotNull(targetsAsStrings, "Parameter 'targetsAsStrings' must not be null.");
+        final Map<String, IMMessageTarget> result = new LinkedHashMap<String, IMMessageTarget>();
+        for (final String targetAsString : targetsAsStrings)
+        {
+            final IMMessageTarget target = fromString(targetAsString);
+            if (target != null)
+            {
+                result.put(targetAsString, target);
+            }
+        }
+        return result;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,255 @@
+package hudson.plugins.sametime.im;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.ChangeLogSet.Entry;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the latest build of every job, as builds start and complete, so that the bot can answer
+ * questions about a job without loading its build history. A job that has not built since Jenkins started
+ * is looked up once, by its last completed build only. The people asking cannot be told apart from anonymous
+ * users, so only jobs anonymous users may read are answered for.
+ */
+public class IMBuildIndex
+{
+    /** The maximum number of jobs remembered, the least recently used ones are forgotten */
+    static final int MAX_JOBS = 2000;
+
+    private static final IMBuildIndex INSTANCE = new IMBuildIndex();
+
+    private final Map<String, JobState> jobs = new LinkedHashMap<String, JobState>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, JobState> eldest)
+        {
+            return size() > MAX_JOBS;
+        }
+    };
+
+    /**
+     * What is known about one job. Immutable, a new one is stored for every change.
+     */
+    public static class JobState
+    {
+        private final String name;
+        private final int building;
+        private final int number;
+        private final String result;
+        private final String duration;
+        private final long completedAt;
+        private final String url;
+        private final String authors;
+
+        JobState(final String name, final int building, final int number, final String result, final String duration,
+                final long completedAt, final String url, final String authors)
+        {
+            this.name = name;
+            this.building = building;
+            this.number = number;
+            this.result = result;
+            this.duration = duration;
+            this.completedAt = completedAt;
+            this.url = url;
+            this.authors = authors;
+        }
+
+        public String getName()
+        {
+            return this.name;
+        }
+
+        /**
+         * @return the number of the build running now, or 0 if none is
+         */
+        public int getBuilding()
+        {
+            return this.building;
+        }
+
+        /**
+         * @return the number of the last completed build, or 0 if there is none
+         */
+        public int getNumber()
+        {
+            return this.number;
+        }
+
+        public String getResult()
+        {
+            return this.result;
+        }
+
+        public String getDuration()
+        {
+            return this.duration;
+        }
+
+        public long getCompletedAt()
+        {
+            return this.completedAt;
+        }
+
+        public String getUrl()
+        {
+            return this.url;
+        }
+
+        /**
+         * @return the authors of the changes in the last completed build, comma separated, or an empty string
+         */
+        public String getAuthors()
+        {
+            return this.authors;
+        }
+    }
+
+    /**
+     * Keeps the index up to date.
+     */
+    @Extension
+    public static class Listener extends RunListener<AbstractBuild>
+    {
+        public Listener()
+        {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onStarted(final AbstractBuild build, final TaskListener listener)
+        {
+            getInstance().started(build);
+        }
+
+        @Override
+        public void onCompleted(final AbstractBuild build, final TaskListener listener)
+        {
+            getInstance().completed(build);
+        }
+    }
+
+    public static IMBuildIndex getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Finds what is known about a job that anonymous users may read.
+     * @param jobName the full name of the job, in any case
+     * @return the job's state, or null if there is no such job, or anonymous users may not read it
+     */
+    public JobState get(final String jobName)
+    {
+        final Hudson hudson = Hudson.getInstance();
+        if (hudson == null)
+        {
+            return null;
+        }
+        final String key = jobName.trim().toLowerCase();
+        final JobState indexed;
+        synchronized (this)
+        {
+            indexed = this.jobs.get(key);
+        }
+        // the index knows the name in its real case
+        final AbstractProject<?, ?> project = hudson.getItemByFullName(indexed != null ? indexed.getName() : jobName.trim(),
+                AbstractProject.class);
+        if (project == null || !project.getACL().hasPermission(Hudson.ANONYMOUS, Item.READ))
+        {
+            return null;
+        }
+        if (indexed != null)
+        {
+            return indexed;
+        }
+        final AbstractBuild<?, ?> last = project.getLastCompletedBuild();
+        final AbstractBuild<?, ?> running = project.getLastBuild();
+        final JobState state = stateOf(project.getFullName(), running != null && running.isBuilding() ? running.getNumber() : 0, last);
+        synchronized (this)
+        {
+            // a build may have been recorded meanwhile
+            final JobState known = this.jobs.get(key);
+            if (known != null)
+            {
+                return known;
+            }
+            this.jobs.put(key, state);
+        }
+        return state;
+    }
+
+    void started(final AbstractBuild<?, ?> build)
+    {
+        final String name = build.getProject().getFullName();
+        final String key = name.toLowerCase();
+        synchronized (this)
+        {
+            final JobState known = this.jobs.get(key);
+            if (known != null)
+            {
+                this.jobs.put(key, new JobState(name, build.getNumber(), known.number, known.result, known.duration,
+                        known.completedAt, known.url, known.authors));
+                return;
+            }
+        }
+        // not known yet, the last completed build is looked up when someone asks
+    }
+
+    void completed(final AbstractBuild<?, ?> build)
+    {
+        final String name = build.getProject().getFullName();
+        final JobState state = stateOf(name, 0, build);
+        synchronized (this)
+        {
+            this.jobs.put(name.toLowerCase(), state);
+        }
+    }
+
+    private static JobState stateOf(final String name, final int building, final AbstractBuild<?, ?> last)
+    {
+        if (last == null)
+        {
+            return new JobState(name, building, 0, null, null, 0, null, "");
+        }
+        final Hudson hudson = Hudson.getInstance();
+        final String rootUrl = hudson != null && hudson.getRootUrl() != null ? hudson.getRootUrl() : "";
+        return new JobState(name, building, last.getNumber(), String.valueOf(last.getResult()),
+                Util.getTimeSpanString(last.getDuration()), last.getTimeInMillis() + last.getDuration(),
+                rootUrl + last.getUrl(), authorsOf(last.getChangeSet()));
+    }
+
+    private static String authorsOf(final ChangeLogSet<? extends Entry> changeLogSet)
+    {
+        if (changeLogSet == null || changeLogSet.isEmptySet())
+        {
+            return "";
+        }
+        final Set<String> authors = new LinkedHashSet<String>();
+        for (final Entry entry : changeLogSet)
+        {
+            authors.add(entry.getAuthor().toString());
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final String author : authors)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(author);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,382 @@
+package hudson.plugins.sametime.im;
+
+import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Protects the senders from an IM server that accepts connections but stops answering.
+ * Every send runs on one of the breaker's own threads and gets a hard deadline, so a hanging
+ * createIm or open never holds up the caller. After {@link #FAILURE_THRESHOLD} sends in a row
+ * timed out or threw, the breaker opens and callers are told to hold back; after {@link #OPEN_DURATION}
+ * it half-opens and lets one probe through, whose outcome closes or opens it again.
+ * A send the server answered counts as success here, even if it could not be delivered.
+ * A send the transport keeps in its reconnect buffer is not waiting for the server, so its deadline starts over
+ * until it leaves the buffer. A send the breaker gives up on is withdrawn from the transport's buffer, and its
+ * delivery stays held, so that it is kept in the outbox.
+ * Sends beyond {@link #MAX_SENDERS} wait for a thread, their deadline starts once they run.
+ */
+public class IMCircuitBreaker
+{
+    /** Sends in a row that have to time out or throw to open the breaker */
+    static final int FAILURE_THRESHOLD = 5;
+    /** How long the breaker stays open before it lets a probe through, in milliseconds */
+    static final long OPEN_DURATION = TimeUnit.SECONDS.toMillis(60);
+    /** How long a send may take until the server has answered, in milliseconds */
+    static final long SEND_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    /** The maximum number of sends running at the same time, more wait for a thread */
+    static final int MAX_SENDERS = 16;
+
+    private static final Logger log = Logger.getLogger(IMCircuitBreaker.class.getName());
+
+    /**
+     * The states of the breaker.
+     */
+    public enum State
+    {
+        /** Sends go through */
+        CLOSED,
+        /** Sends are refused until {@link IMCircuitBreaker#OPEN_DURATION} has passed */
+        OPEN,
+        /** One probe may go through */
+        HALF_OPEN
+    }
+
+    /**
+     * Told about the breaker's state changes, on the breaker's timer thread or on the thread recording an outcome.
+     */
+    public interface Listener
+    {
+        /**
+         * @param state the new state
+         */
+        void stateChanged(State state);
+    }
+
+    private final long openDuration;
+    private final long sendTimeout;
+    private final ThreadPoolExecutor senders;
+    private final ScheduledThreadPoolExecutor timer;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private boolean probing;
+    private long probeStartedAt;
+    private long trips;
+
+    /**
+     * Constructor.
+     * @param name the name of the breaker's threads
+     */
+    public IMCircuitBreaker(final String name)
+    {
+        this(name, OPEN_DURATION, SEND_TIMEOUT);
+    }
+
+    /**
+     * Constructor with other timings than {@link #OPEN_DURATION} and {@link #SEND_TIMEOUT}.
+     * @param name the name of the breaker's threads
+     * @param openDuration how long the breaker stays open, in milliseconds
+     * @param sendTimeout how long a send may take, in milliseconds
+     */
+    IMCircuitBreaker(final String name, final long openDuration, final long sendTimeout)
+    {
+        Assert.isNotNull(name, "Parameter 'name' must not be null.");
+        this.openDuration = openDuration;
+        this.sendTimeout = sendTimeout;
+        this.senders = new ThreadPoolExecutor(MAX_SENDERS, MAX_SENDERS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
+        this.senders.allowCoreThreadTimeOut(true);
+        this.timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(name + " timer"));
+    }
+
+    public void addListener(final Listener listener)
+    {
+        Assert.isNotNull(listener, "Parameter 'listener' must not be null.");
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener)
+    {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Asks whether the caller may start sending. While half-open, only the first caller may, as the probe;
+     * another one may once the probe has had {@link #SEND_TIMEOUT} without an outcome, e.g. because it sent nothing.
+     * @return false if the caller should hold its notifications back
+     */
+    public synchronized boolean tryAcquire()
+    {
+        final long now = System.currentTimeMillis();
+        switch (this.state)
+        {
+        case CLOSED :
+            return true;
+        case HALF_OPEN :
+            if (this.probing && now - this.probeStartedAt < this.sendTimeout)
+            {
+                return false;
+            }
+            this.probing = true;
+            this.probeStartedAt = now;
+            return true;
+        case OPEN :
+        default :
+            return false;
+        }
+    }
+
+    public synchronized State getState()
+    {
+        return this.state;
+    }
+
+    /**
+     * @return how often the breaker has opened
+     */
+    public synchronized long getTripCount()
+    {
+        return this.trips;
+    }
+
+    /**
+     * Wraps a connection so that sending over it is guarded by this breaker.
+     * @param connection the connection to send over
+     * @return the guarded connection
+     */
+    public IMConnection through(final IMConnection connection)
+    {
+        return new IMConnection() {
+            public IMDelivery send(final IMNotification notification) throws IMException
+            {
+                return guardedSend(connection, notification);
+            }
+
+            public void setPresence(final IMPresence presence) throws IMException
+            {
+                connection.setPresence(presence);
+            }
+
+            public void close()
+            {
+                connection.close();
+            }
+        };
+    }
+
+    /**
+     * Stops the breaker's threads. Sends still running are left to finish on their own.
+     */
+    public void shutdown()
+    {
+        this.timer.shutdownNow();
+        this.senders.shutdown();
+    }
+
+    private IMDelivery guardedSend(final IMConnection connection, final IMNotification notification)
+    {
+        final IMDelivery outer = new IMDelivery(notification);
+        final AtomicReference<IMDelivery> inner = new AtomicReference<IMDelivery>();
+        final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            public void run()
+            {
+                forward(connection, outer, inner);
+            }
+        }, null) {
+            @Override
+            public void run()
+            {
+                // not counting the time spent waiting for a thread
+                startDeadline(this, outer, inner);
+                super.run();
+            }
+        };
+        try
+        {
+            this.senders.execute(task);
+        }
+        catch (final RejectedExecutionException e)
+        {
+            outer.fail("circuit breaker shut down");
+        }
+        return outer;
+    }
+
+    /**
+     * Fails a send, and counts it against the breaker, if the server has not answered it within {@link #SEND_TIMEOUT}.
+     * The deadline starts over while the transport keeps the send in its buffer.
+     * @param inner the transport's delivery, once the transport has taken the send
+     */
+    private void startDeadline(final Future<?> running, final IMDelivery outer, final AtomicReference<IMDelivery> inner)
+    {
+        try
+        {
+            this.timer.schedule(new Runnable() {
+                public void run()
+                {
+                    if (outer.isDone())
+                    {
+                        return;
+                    }
+                    final IMDelivery accepted = inner.get();
+                    if (accepted != null && accepted.isBuffered())
+                    {
+                        startDeadline(running, outer, inner);
+                        return;
+                    }
+                    giveUp(running, outer, accepted);
+                }
+            }, this.sendTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // shut down, the send goes without a deadline
+        }
+    }
+
+    /**
+     * Fails a send the server has not answered in time. The send may still be on its way, so it is withdrawn from
+     * the transport's buffer, and its delivery stays held, so that it is kept in the outbox and not marked done.
+     */
+    private void giveUp(final Future<?> running, final IMDelivery outer, final IMDelivery accepted)
+    {
+        running.cancel(true);
+        if (accepted != null)
+        {
+            accepted.withdraw();
+        }
+        final String reason = "no answer from the IM server within " + TimeUnit.MILLISECONDS.toSeconds(this.sendTimeout) + "s";
+        outer.hold();
+        outer.fail(reason);
+        if (!reason.equals(outer.getFailureReason()))
+        {
+            // answered meanwhile
+            outer.release();
+            return;
+        }
+        recordFailure();
+    }
+
+    private void forward(final IMConnection connection, final IMDelivery outer, final AtomicReference<IMDelivery> accepted)
+    {
+        final IMDelivery inner;
+        try
+        {
+            inner = connection.send(outer.getNotification());
+            accepted.set(inner);
+        }
+        catch (final Exception e)
+        {
+            log.log(Level.FINE, "Could not send to " + outer.getNotification().getTarget(), e);
+            if (!outer.isDone())
+            {
+                outer.fail(e.toString());
+                recordFailure();
+            }
+            return;
+        }
+        inner.addListener(new IMDeliveryListener() {
+            public void deliveryCompleted(final IMDelivery completed)
+            {
+                if (outer.isDone())
+                {
+                    // timed out, and maybe delivered late
+                    return;
+                }
+                outer.completeAs(completed);
+                recordSuccess();
+            }
+        });
+    }
+
+    private void recordSuccess()
+    {
+        synchronized (this)
+        {
+            this.consecutiveFailures = 0;
+            if (this.state == State.CLOSED)
+            {
+                return;
+            }
+            this.state = State.CLOSED;
+            this.probing = false;
+        }
+        log.info("IM server is answering again, circuit breaker closed.");
+        fire(State.CLOSED);
+    }
+
+    private void recordFailure()
+    {
+        final int failures;
+        synchronized (this)
+        {
+            failures = ++this.consecutiveFailures;
+            if (this.state == State.OPEN
+                    || (this.state == State.CLOSED && this.consecutiveFailures < FAILURE_THRESHOLD))
+            {
+                return;
+            }
+            this.state = State.OPEN;
+            this.probing = false;
+            this.trips++;
+        }
+        log.warning(failures + " sends in a row failed, circuit breaker open for "
+                + TimeUnit.MILLISECONDS.toSeconds(this.openDuration) + "s.");
+        fire(State.OPEN);
+        try
+        {
+            this.timer.schedule(new Runnable() {
+                public void run()
+                {
+                    halfOpen();
+                }
+            }, this.openDuration, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // shut down
+        }
+    }
+
+    private void halfOpen()
+    {
+        synchronized (this)
+        {
+            if (this.state != State.OPEN)
+            {
+                return;
+            }
+            this.state = State.HALF_OPEN;
+        }
+        log.info("Circuit breaker half-open, probing the IM server.");
+        fire(State.HALF_OPEN);
+    }
+
+    private void fire(final State newState)
+    {
+        for (final Listener listener : this.listeners)
+        {
+            try
+            {
+                listener.stateChanged(newState);
+            }
+            catch (final RuntimeException e)
+            {
+                log.log(Level.WARNING, "Circuit breaker listener failed", e);
+            }
+        }
+    }
+}
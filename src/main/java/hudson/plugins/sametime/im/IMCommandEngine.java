@@ -0,0 +1,260 @@
+package hudson.plugins.sametime.im;
+
+import hudson.Util;
+import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Answers the commands people send to the bot, e.g. <code>!status job</code>. Commands are run on a few
+ * threads of their own, never on the thread of the IM protocol that received them, and answered from the
+ * IMBuildIndex. The engine also remembers who has muted the bot.
+ */
+public class IMCommandEngine
+{
+    /** The number of threads running commands */
+    static final int THREADS = 2;
+    /** The maximum number of commands waiting for a thread, more are turned down */
+    static final int QUEUE_CAPACITY = 50;
+    /** How long <code>mute</code> without a number of minutes lasts, in minutes */
+    static final int DEFAULT_MUTE_MINUTES = 60;
+
+    private static final Logger log = Logger.getLogger(IMCommandEngine.class.getName());
+
+    /**
+     * Sends an answer back to whoever sent the command.
+     */
+    public interface Reply
+    {
+        /**
+         * @param text the answer
+         */
+        void send(String text);
+    }
+
+    private final IMBuildIndex index;
+    private final ThreadPoolExecutor executor;
+    /** until when each sender has muted the bot, in milliseconds since the epoch */
+    private final Map<String, Long> mutedUntil = new HashMap<String, Long>();
+    private volatile String prefix = "!";
+
+    /**
+     * Constructor.
+     * @param name the name of the command threads
+     * @param index where to look up jobs
+     */
+    public IMCommandEngine(final String name, final IMBuildIndex index)
+    {
+        Assert.isNotNull(name, "Parameter 'name' must not be null.");
+        Assert.isNotNull(index, "Parameter 'index' must not be null.");
+        this.index = index;
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new NamedThreadFactory(name));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets what commands start with.
+     * @param prefix the prefix, e.g. "!"
+     */
+    public void setPrefix(final String prefix)
+    {
+        Assert.isNotNull(prefix, "Parameter 'prefix' must not be null.");
+        this.prefix = prefix.trim();
+    }
+
+    /**
+     * Queues a command to be run and answered. Returns right away.
+     * @param sender who sent it, as the key that {@link #isMuted(String)} is asked with
+     * @param text the text received
+     * @param reply where to send the answer
+     * @return false if the text is not a command
+     */
+    public boolean handle(final String sender, final String text, final Reply reply)
+    {
+        final String p = this.prefix;
+        if (text == null || !text.trim().startsWith(p) || text.trim().length() == p.length())
+        {
+            return false;
+        }
+        final String command = text.trim().substring(p.length()).trim();
+        try
+        {
+            this.executor.execute(new Runnable() {
+                public void run()
+                {
+                    final String answer;
+                    try
+                    {
+                        answer = execute(sender, command);
+                    }
+                    catch (final RuntimeException e)
+                    {
+                        log.log(Level.WARNING, "Command '" + command + "' from " + sender + " failed", e);
+                        // the details are in the log, not for whoever sent the command
+                        reply.send("Sorry, that did not work.");
+                        return;
+                    }
+                    reply.send(answer);
+                }
+            });
+        }
+        catch (final RejectedExecutionException e)
+        {
+            reply.send("Too busy right now, please try again later.");
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a recipient has muted the bot.
+     * @param recipient the same key the commands were sent with
+     * @return true if notifications to the recipient are not wanted now
+     */
+    public synchronized boolean isMuted(final String recipient)
+    {
+        final Long until = this.mutedUntil.get(recipient);
+        if (until == null)
+        {
+            return false;
+        }
+        if (until.longValue() <= System.currentTimeMillis())
+        {
+            this.mutedUntil.remove(recipient);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the command threads. Commands still queued are not answered.
+     */
+    public void shutdown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Runs one command.
+     * @param sender who sent it
+     * @param command the command without the prefix
+     * @return the answer
+     */
+    String execute(final String sender, final String command)
+    {
+        final String[] words = command.split("\\s+", 2);
+        final String name = words[0].toLowerCase();
+        final String argument = words.length > 1 ? words[1].trim() : "";
+        if ("status".equals(name) && argument.length() > 0)
+        {
+            return status(argument);
+        }
+        if ("last".equals(name) && argument.length() > 0)
+        {
+            return last(argument);
+        }
+        if ("mute".equals(name))
+        {
+            return mute(sender, argument);
+        }
+        if ("unmute".equals(name))
+        {
+            synchronized (this)
+            {
+                this.mutedUntil.remove(sender);
+            }
+            return "You will get notifications again.";
+        }
+        return help();
+    }
+
+    private String status(final String job)
+    {
+        final IMBuildIndex.JobState state = this.index.get(job);
+        if (state == null)
+        {
+            return "There is no job " + job + ".";
+        }
+        final StringBuilder sb = new StringBuilder(state.getName()).append(": ");
+        if (state.getNumber() > 0)
+        {
+            sb.append(state.getResult()).append(" (#").append(state.getNumber()).append(", ")
+                    .append(Util.getTimeSpanString(System.currentTimeMillis() - state.getCompletedAt())).append(" ago)");
+        }
+        else
+        {
+            sb.append("never built");
+        }
+        if (state.getBuilding() > 0)
+        {
+            sb.append(", #").append(state.getBuilding()).append(" is building");
+        }
+        return sb.toString();
+    }
+
+    private String last(final String job)
+    {
+        final IMBuildIndex.JobState state = this.index.get(job);
+        if (state == null)
+        {
+            return "There is no job " + job + ".";
+        }
+        if (state.getNumber() == 0)
+        {
+            return state.getName() + " has not completed a build yet.";
+        }
+        final StringBuilder sb = new StringBuilder(state.getName()).append(" #").append(state.getNumber())
+                .append(": ").append(state.getResult()).append(" in ").append(state.getDuration()).append(", ")
+                .append(Util.getTimeSpanString(System.currentTimeMillis() - state.getCompletedAt())).append(" ago: ")
+                .append(state.getUrl());
+        if (state.getAuthors().length() > 0)
+        {
+            sb.append("\nChanges by ").append(state.getAuthors());
+        }
+        return sb.toString();
+    }
+
+    private String mute(final String sender, final String argument)
+    {
+        int minutes = DEFAULT_MUTE_MINUTES;
+        if (argument.length() > 0)
+        {
+            try
+            {
+                minutes = Integer.parseInt(argument);
+            }
+            catch (final NumberFormatException e)
+            {
+                return "Usage: " + this.prefix + "mute [minutes]";
+            }
+            if (minutes <= 0)
+            {
+                return "Usage: " + this.prefix + "mute [minutes]";
+            }
+        }
+        synchronized (this)
+        {
+            this.mutedUntil.put(sender, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(minutes));
+        }
+        return "No notifications for you for " + minutes + " minutes. Send " + this.prefix + "unmute to get them again.";
+    }
+
+    private String help()
+    {
+        final String p = this.prefix;
+        return "Commands:\n"
+                + p + "status <job> - the result of the job's last build, and whether it is building\n"
+                + p + "last <job> - details of the job's last build\n"
+                + p + "mute [minutes] - no notifications for you, for " + DEFAULT_MUTE_MINUTES + " minutes if not given\n"
+                + p + "unmute - notifications again\n"
+                + p + "help - this list";
+    }
+}
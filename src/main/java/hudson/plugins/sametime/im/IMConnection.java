@@ -14,11 +14,14 @@ public interface IMConnection
 
     /**
      * Sends a Message-Text to an IMMessageTarget (aka a User ;).
-     * @param target the target to send to 
-     * @param text the text to be sent
+     * Returns without waiting for the IM server; the result is reported through the returned IMDelivery.
+     * The target may be an unresolved DefaultIMMessageTarget; only users the connection knows already are sent to,
+     * see {@link IMConnectionProvider#resolveTargets(java.util.Collection)}.
+     * @param notification the target to send to and the text to be sent
+     * @return the pending delivery
      * @throws IMException
      */
-    void send(IMMessageTarget target, String text) throws IMException;
+    IMDelivery send(IMNotification notification) throws IMException;
 
     /**
      * Sets the current connections� presence to a protocol specific adaption of the given presence parameter.
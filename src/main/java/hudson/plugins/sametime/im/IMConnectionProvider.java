@@ -0,0 +1,37 @@
+package hudson.plugins.sametime.im;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives access to the current IMConnection of a protocol implementation, so that 
+ * components like the IMNotificationDispatcher need not know how it is created.
+ */
+public interface IMConnectionProvider
+{
+    /**
+     * Returns the current connection, creating one if it doesn't exist.
+     * @return the connection, might be null if the protocol is not configured
+     * @throws IMException on any underlying communication Exception
+     */
+    IMConnection currentConnection() throws IMException;
+
+    /**
+     * Returns the current connection once it is ready to send, starting to connect if necessary.
+     * @param timeout how long to wait at most
+     * @param unit the unit of the timeout
+     * @return the connection, or null if none is available in time or the protocol is not configured
+     * @throws IMException if connecting failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    IMConnection awaitConnection(long timeout, TimeUnit unit) throws IMException, InterruptedException;
+
+    /**
+     * Looks up the users among the given targets, all in one go, and waits for the answers, so that
+     * {@link IMConnection#send(IMNotification)} finds them known and need not wait for the server.
+     * Called by the IMNotificationDispatcher on its own threads before it sends a job.
+     * @param targets the targets of one job, group chats among them are left alone
+     * @throws IMException if the lookup could not be started
+     */
+    void resolveTargets(Collection<IMMessageTarget> targets) throws IMException;
+}
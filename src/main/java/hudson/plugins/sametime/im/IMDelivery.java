@@ -0,0 +1,353 @@
+package hudson.plugins.sametime.im;
+
+import hudson.plugins.sametime.tools.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The outcome of sending one IMNotification. An IMConnection hands this out as soon as the
+ * message is on its way, and completes it once the protocol reports success or failure, so
+ * callers can wait for, or be called back on, the real result without blocking the protocol's threads.
+ * Whoever keeps a deferred notification holds its delivery until the notification is sent on or dropped,
+ * so that its journal record is not forgotten while it lives only in memory.
+ * A transport that keeps the notification in a buffer until it can send it, e.g. while it reconnects, marks the
+ * delivery as buffered; a sender that gives up on it withdraws it, so that the buffer drops it instead of sending it.
+ */
+public class IMDelivery
+{
+    private static final Logger log = Logger.getLogger(IMDelivery.class.getName());
+
+    private final IMNotification notification;
+    private final long startedAt;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<IMDeliveryListener> listeners = new ArrayList<IMDeliveryListener>();
+    private final List<Runnable> onReleased = new ArrayList<Runnable>();
+    private int holds;
+    private long completedAt;
+    private boolean delivered;
+    private boolean deferred;
+    private boolean buffered;
+    private boolean withdrawn;
+    private String failureReason;
+
+    /**
+     * Constructor.
+     * @param notification the notification being sent
+     */
+    public IMDelivery(final IMNotification notification)
+    {
+        Assert.isNotNull(notification, "Parameter 'notification' must not be null.");
+        this.notification = notification;
+        this.startedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates a delivery that has already failed.
+     * @param notification the notification that could not be sent
+     * @param reason why it could not be sent
+     * @return the failed delivery
+     */
+    public static IMDelivery failed(final IMNotification notification, final String reason)
+    {
+        final IMDelivery delivery = new IMDelivery(notification);
+        delivery.fail(reason);
+        return delivery;
+    }
+
+    public IMNotification getNotification()
+    {
+        return this.notification;
+    }
+
+    /**
+     * Marks the notification as handed to the recipient.
+     */
+    public void succeed()
+    {
+        complete(true, null);
+    }
+
+    /**
+     * Marks the notification as not delivered.
+     * @param reason why it was not delivered
+     */
+    public void fail(final String reason)
+    {
+        complete(false, reason);
+    }
+
+    /**
+     * Marks the notification as taken over by someone who sends it later, e.g. once the recipient is online again.
+     * @param reason why it was not sent now
+     */
+    public void defer(final String reason)
+    {
+        final List<IMDeliveryListener> toNotify;
+        synchronized (this)
+        {
+            if (isDone())
+            {
+                return;
+            }
+            this.deferred = true;
+            toNotify = completed(reason);
+        }
+        notifyListeners(toNotify);
+    }
+
+    /**
+     * Completes this delivery the same way another one has completed. It is held as long as the other one is.
+     * @param other the completed delivery
+     */
+    public void completeAs(final IMDelivery other)
+    {
+        hold();
+        other.whenReleased(new Runnable() {
+            public void run()
+            {
+                release();
+            }
+        });
+        if (other.isDelivered())
+        {
+            succeed();
+        }
+        else if (other.isDeferred())
+        {
+            defer(other.getFailureReason());
+        }
+        else
+        {
+            fail(other.getFailureReason());
+        }
+    }
+
+    /**
+     * Keeps the notification from being forgotten until {@link #release()} is called, e.g. while it is kept
+     * for a recipient who is away. Every hold needs its own release.
+     */
+    public synchronized void hold()
+    {
+        this.holds++;
+    }
+
+    /**
+     * Gives up one hold. Once none is left, the callbacks registered with {@link #whenReleased(Runnable)} run.
+     */
+    public void release()
+    {
+        final List<Runnable> toRun;
+        synchronized (this)
+        {
+            if (this.holds == 0 || --this.holds > 0)
+            {
+                return;
+            }
+            toRun = new ArrayList<Runnable>(this.onReleased);
+            this.onReleased.clear();
+        }
+        for (final Runnable callback : toRun)
+        {
+            run(callback);
+        }
+    }
+
+    /**
+     * Registers a callback to be run once nothing holds the delivery. If nothing does, it is run right away
+     * on the calling thread.
+     * @param callback the callback
+     */
+    public void whenReleased(final Runnable callback)
+    {
+        Assert.isNotNull(callback, "Parameter 'callback' must not be null.");
+        synchronized (this)
+        {
+            if (this.holds > 0)
+            {
+                this.onReleased.add(callback);
+                return;
+            }
+        }
+        run(callback);
+    }
+
+    /**
+     * Tells whether the transport keeps the notification in a buffer. Nothing is on its way to the server
+     * meanwhile, so there is no answer to wait for.
+     * @param buffered true when it is put into the buffer, false when it is taken out
+     */
+    public synchronized void setBuffered(final boolean buffered)
+    {
+        this.buffered = buffered;
+    }
+
+    /**
+     * @return true while the transport keeps the notification in a buffer
+     */
+    public synchronized boolean isBuffered()
+    {
+        return this.buffered;
+    }
+
+    /**
+     * Asks the transport not to send the notification from its buffer any more, because the sender has given up
+     * on it. A notification already on its way to the server is not called back.
+     */
+    public synchronized void withdraw()
+    {
+        this.withdrawn = true;
+    }
+
+    /**
+     * @return true if the notification is not to be sent from a buffer
+     */
+    public synchronized boolean isWithdrawn()
+    {
+        return this.withdrawn;
+    }
+
+    /**
+     * Registers a listener to be called once the delivery completes. If it has already
+     * completed, the listener is called right away on the calling thread.
+     * @param listener the listener
+     */
+    public void addListener(final IMDeliveryListener listener)
+    {
+        Assert.isNotNull(listener, "Parameter 'listener' must not be null.");
+        synchronized (this)
+        {
+            if (!isDone())
+            {
+                this.listeners.add(listener);
+                return;
+            }
+        }
+        notify(listener);
+    }
+
+    /**
+     * Waits for the delivery to complete.
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout argument
+     * @return true if the delivery completed, false if the time ran out
+     * @throws InterruptedException if the current thread was interrupted while waiting
+     */
+    public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return this.done.await(timeout, unit);
+    }
+
+    public boolean isDone()
+    {
+        return this.done.getCount() == 0;
+    }
+
+    public synchronized boolean isDelivered()
+    {
+        return this.delivered;
+    }
+
+    /**
+     * @return true if the notification is to be sent later by whoever deferred it
+     */
+    public synchronized boolean isDeferred()
+    {
+        return this.deferred;
+    }
+
+    /**
+     * @return why the delivery failed or was deferred, or null if it has not
+     */
+    public synchronized String getFailureReason()
+    {
+        return this.failureReason;
+    }
+
+    /**
+     * @return the time from sending to completion in milliseconds, or -1 if not yet completed
+     */
+    public synchronized long getLatencyMillis()
+    {
+        return isDone() ? this.completedAt - this.startedAt : -1;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        if (!isDone())
+        {
+            return "pending";
+        }
+        if (this.delivered)
+        {
+            return "delivered in " + getLatencyMillis() + "ms";
+        }
+        return (this.deferred ? "deferred: " : "failed: ") + this.failureReason;
+    }
+
+    private void complete(final boolean success, final String reason)
+    {
+        final List<IMDeliveryListener> toNotify;
+        synchronized (this)
+        {
+            if (isDone())
+            {
+                return;
+            }
+            this.delivered = success;
+            toNotify = completed(success ? null : reason);
+        }
+        notifyListeners(toNotify);
+    }
+
+    /**
+     * Records the completion, holding the lock.
+     * @return the listeners to call
+     */
+    private List<IMDeliveryListener> completed(final String reason)
+    {
+        this.failureReason = this.delivered ? null : (reason != null ? reason : "unknown reason");
+        this.completedAt = System.currentTimeMillis();
+        this.done.countDown();
+        final List<IMDeliveryListener> toNotify = new ArrayList<IMDeliveryListener>(this.listeners);
+        this.listeners.clear();
+        return toNotify;
+    }
+
+    private void notifyListeners(final List<IMDeliveryListener> toNotify)
+    {
+        for (final IMDeliveryListener listener : toNotify)
+        {
+            notify(listener);
+        }
+    }
+
+    private void run(final Runnable callback)
+    {
+        try
+        {
+            callback.run();
+        }
+        catch (final RuntimeException e)
+        {
+            log.log(Level.WARNING, "Release callback failed", e);
+        }
+    }
+
+    private void notify(final IMDeliveryListener listener)
+    {
+        try
+        {
+            listener.deliveryCompleted(this);
+        }
+        catch (final RuntimeException e)
+        {
+            log.log(Level.WARNING, "IMDeliveryListener failed", e);
+        }
+    }
+}
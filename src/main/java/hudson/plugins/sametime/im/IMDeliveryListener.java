@@ -0,0 +1,14 @@
+package hudson.plugins.sametime.im;
+
+/**
+ * Gets told when an IMDelivery completes.
+ */
+public interface IMDeliveryListener
+{
+    /**
+     * Called once the delivery has succeeded or failed. Implementations should return quickly,
+     * they may be called on the protocol's event thread.
+     * @param delivery the completed delivery
+     */
+    void deliveryCompleted(IMDelivery delivery);
+}
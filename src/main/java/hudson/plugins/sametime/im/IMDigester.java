@@ -0,0 +1,208 @@
+package hudson.plugins.sametime.im;
+
+import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the notifications to one recipient that arrive within a window into a single digest,
+ * so that a storm of failing jobs ends up as one message per developer instead of dozens.
+ * The window starts with the first notification to a recipient; a digest is also sent early
+ * once it holds {@link #MAX_MESSAGES} notifications or would grow beyond {@link #MAX_CHARS}.
+ */
+public class IMDigester
+{
+    /** The maximum number of notifications merged into one digest */
+    static final int MAX_MESSAGES = 20;
+    /** The maximum length of a digest's text */
+    static final int MAX_CHARS = 4000;
+    /** The source of a digest merging notifications of several jobs, it stands for none of them */
+    public static final String DIGEST_SOURCE = "digest";
+
+    /**
+     * Receives the digests once their window is over.
+     */
+    public interface Sink
+    {
+        /**
+         * @param digest the notification to send, the original one if there was only one
+         * @param ids the outbox ids of all notifications merged into it
+         */
+        void flushed(IMNotification digest, long[] ids);
+    }
+
+    private final long windowMillis;
+    private final Sink sink;
+    private final ScheduledExecutorService timer;
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+    /**
+     * The notifications waiting for one recipient.
+     */
+    private static class Pending
+    {
+        private final List<IMNotification> notifications = new ArrayList<IMNotification>();
+        private final List<Long> ids = new ArrayList<Long>();
+        private int chars;
+    }
+
+    /**
+     * Constructor.
+     * @param name the name of the timer thread
+     * @param windowMillis how long notifications to one recipient are collected
+     * @param sink where to hand the digests to
+     */
+    public IMDigester(final String name, final long windowMillis, final Sink sink)
+    {
+        Assert.isNotNull(sink, "Parameter 'sink' must not be null.");
+        this.windowMillis = windowMillis;
+        this.sink = sink;
+        this.timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(name));
+    }
+
+    /**
+     * Collects a notification for its recipient's next digest.
+     * @param notification the notification
+     * @param ids its outbox ids, empty if it is not journaled
+     */
+    public void add(final IMNotification notification, final long[] ids)
+    {
+        final String key = notification.getTarget().toString();
+        Pending full = null;
+        boolean startWindow = false;
+        synchronized (this)
+        {
+            Pending p = this.pending.get(key);
+            if (p != null && (p.notifications.size() >= MAX_MESSAGES
+                    || p.chars + notification.getText().length() > MAX_CHARS))
+            {
+                full = this.pending.remove(key);
+                p = null;
+            }
+            if (p == null)
+            {
+                p = new Pending();
+                this.pending.put(key, p);
+                startWindow = true;
+            }
+            p.notifications.add(notification);
+            p.chars += notification.getText().length();
+            for (final long id : ids)
+            {
+                p.ids.add(id);
+            }
+            if (startWindow)
+            {
+                scheduleFlush(key, p);
+            }
+        }
+        if (full != null)
+        {
+            emit(full);
+        }
+    }
+
+    /**
+     * Sends all collected digests right away and stops the timer.
+     */
+    public void shutdown()
+    {
+        this.timer.shutdownNow();
+        final List<Pending> all;
+        synchronized (this)
+        {
+            all = new ArrayList<Pending>(this.pending.values());
+            this.pending.clear();
+        }
+        for (final Pending p : all)
+        {
+            emit(p);
+        }
+    }
+
+    /**
+     * @return the number of recipients with notifications waiting
+     */
+    public synchronized int getPendingRecipients()
+    {
+        return this.pending.size();
+    }
+
+    private void scheduleFlush(final String key, final Pending p)
+    {
+        try
+        {
+            this.timer.schedule(new Runnable() {
+                public void run()
+                {
+                    flush(key, p);
+                }
+            }, this.windowMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // shut down, shutdown() sends it
+        }
+    }
+
+    private void flush(final String key, final Pending p)
+    {
+        synchronized (this)
+        {
+            // it may have been sent early because it was full
+            if (this.pending.get(key) != p)
+            {
+                return;
+            }
+            this.pending.remove(key);
+        }
+        emit(p);
+    }
+
+    private void emit(final Pending p)
+    {
+        final long[] ids = new long[p.ids.size()];
+        for (int i = 0; i < ids.length; i++)
+        {
+            ids[i] = p.ids.get(i);
+        }
+        this.sink.flushed(merge(p.notifications), ids);
+    }
+
+    /**
+     * Merges notifications to the same recipient into one, oldest first.
+     * @param notifications the notifications, at least one
+     * @return the digest, the notification itself if there is only one
+     */
+    public static IMNotification merge(final List<IMNotification> notifications)
+    {
+        final IMNotification first = notifications.get(0);
+        if (notifications.size() == 1)
+        {
+            return first;
+        }
+        final StringBuilder text = new StringBuilder();
+        text.append(notifications.size()).append(" build notifications:");
+        String source = first.getSource();
+        IMNotificationPriority priority = first.getPriority();
+        for (final IMNotification notification : notifications)
+        {
+            text.append("\n- ").append(notification.getText());
+            priority = priority.max(notification.getPriority());
+            if (source != null && !source.equals(notification.getSource()))
+            {
+                source = null;
+            }
+        }
+        return new IMNotification(first.getTarget(), text.toString(), source != null ? source : DIGEST_SOURCE,
+                priority, first.getCreatedAt());
+    }
+}
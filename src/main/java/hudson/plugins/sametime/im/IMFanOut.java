@@ -0,0 +1,130 @@
+package hudson.plugins.sametime.im;
+
+import hudson.plugins.sametime.tools.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Sends a list of notifications over one connection with a bounded number of deliveries
+ * in flight at a time, and waits for their results so they can be reported together.
+ */
+public class IMFanOut
+{
+    private static final Logger log = Logger.getLogger(IMFanOut.class.getName());
+
+    private final int concurrency;
+    private final long timeoutMillis;
+
+    /**
+     * Constructor.
+     * @param concurrency the maximum number of deliveries in flight
+     * @param timeoutMillis how long to wait for all deliveries of one fan-out to complete
+     */
+    public IMFanOut(final int concurrency, final long timeoutMillis)
+    {
+        this.concurrency = Math.max(1, concurrency);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public int getConcurrency()
+    {
+        return this.concurrency;
+    }
+
+    /**
+     * Sends the notifications and waits for their deliveries to complete, or for the timeout to run out.
+     * Notifications that could not get a slot before the timeout are not sent at all, and have no delivery;
+     * the caller has to send them later.
+     * @param connection the connection to send over
+     * @param notifications the notifications to send
+     * @return the deliveries of the notifications sent, in the same order, a prefix of the notifications;
+     *         deliveries that timed out are still pending
+     * @throws InterruptedException if the current thread was interrupted while waiting
+     */
+    public List<IMDelivery> send(final IMConnection connection, final List<IMNotification> notifications)
+            throws InterruptedException
+    {
+        Assert.isNotNull(connection, "Parameter 'connection' must not be null.");
+        Assert.isNotNull(notifications, "Parameter 'notifications' must not be null.");
+        final long deadline = System.currentTimeMillis() + this.timeoutMillis;
+        final Semaphore inFlight = new Semaphore(this.concurrency);
+        final IMDeliveryListener release = new IMDeliveryListener() {
+            public void deliveryCompleted(final IMDelivery delivery)
+            {
+                inFlight.release();
+            }
+        };
+
+        final List<IMDelivery> deliveries = new ArrayList<IMDelivery>(notifications.size());
+        for (final IMNotification notification : notifications)
+        {
+            if (!inFlight.tryAcquire(remaining(deadline), TimeUnit.MILLISECONDS))
+            {
+                log.warning("Timed out waiting for a free slot, not sending to the " + (notifications.size() - deliveries.size())
+                        + " remaining target(s) now.");
+                return deliveries;
+            }
+            IMDelivery delivery;
+            try
+            {
+                delivery = connection.send(notification);
+            }
+            catch (final Exception e)
+            {
+                delivery = IMDelivery.failed(notification, e.toString());
+            }
+            deliveries.add(delivery);
+            delivery.addListener(release);
+        }
+
+        for (final IMDelivery delivery : deliveries)
+        {
+            if (!delivery.await(remaining(deadline), TimeUnit.MILLISECONDS))
+            {
+                break;
+            }
+        }
+        return deliveries;
+    }
+
+    /**
+     * Builds a one-line summary of the given deliveries, listing every target that was not reached.
+     * @param deliveries the deliveries to summarize
+     * @return the summary
+     */
+    public static String summarize(final List<IMDelivery> deliveries)
+    {
+        int delivered = 0;
+        int deferred = 0;
+        int pending = 0;
+        final StringBuilder problems = new StringBuilder();
+        for (final IMDelivery delivery : deliveries)
+        {
+            if (delivery.isDelivered())
+            {
+                delivered++;
+                continue;
+            }
+            if (delivery.isDeferred())
+            {
+                deferred++;
+            }
+            if (!delivery.isDone())
+            {
+                pending++;
+            }
+            problems.append("\n  ").append(delivery.getNotification().getTarget()).append(": ").append(delivery);
+        }
+        final int failed = deliveries.size() - delivered - deferred - pending;
+        return delivered + " delivered, " + deferred + " deferred, " + failed + " failed, " + pending + " still pending" + problems;
+    }
+
+    private static long remaining(final long deadline)
+    {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+}
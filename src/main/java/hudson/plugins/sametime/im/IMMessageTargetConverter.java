@@ -1,5 +1,8 @@
 package hudson.plugins.sametime.im;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * A IMMessageTargetConverter has the responsibility of creating a 
  * IMMessageTarget from a String and back. It will be used to create 
@@ -19,6 +22,13 @@ public interface IMMessageTargetConverter
      */
     IMMessageTarget fromString(String targetAsString) throws IMMessageTargetConversionException;
 
+    /**
+     * creates IMMessageTargets from all given Strings at once, which may be much cheaper than one by one.
+     * @param targetsAsStrings must not be null, null or empty elements are ignored
+     * @return the targets by the String they were created from, in the given order; Strings that could not be converted are missing
+     */
+    Map<String, IMMessageTarget> fromStrings(Collection<String> targetsAsStrings) throws IMMessageTargetConversionException;
+
     /**
      * Turns given IMMessageTarget into a String for GUI-Display.
      * @param target must not be null
@@ -0,0 +1,94 @@
+package hudson.plugins.sametime.im;
+
+import hudson.plugins.sametime.tools.Assert;
+
+/**
+ * A message waiting to be sent to a single IMMessageTarget.
+ */
+public class IMNotification
+{
+    private final IMMessageTarget target;
+    private final String text;
+    private final String source;
+    private final long createdAt;
+    private final IMNotificationPriority priority;
+
+    /**
+     * Constructor.
+     * @param target the target to send to
+     * @param text the text to be sent
+     * @param source name of the job the notification is about, may be null
+     */
+    public IMNotification(final IMMessageTarget target, final String text, final String source)
+    {
+        this(target, text, source, IMNotificationPriority.NORMAL);
+    }
+
+    /**
+     * Constructor.
+     * @param target the target to send to
+     * @param text the text to be sent
+     * @param source name of the job the notification is about, may be null
+     * @param priority how urgent the notification is
+     */
+    public IMNotification(final IMMessageTarget target, final String text, final String source,
+            final IMNotificationPriority priority)
+    {
+        this(target, text, source, priority, System.currentTimeMillis());
+    }
+
+    /**
+     * Constructor for notifications created earlier, e.g. read back from the IMOutbox.
+     * @param target the target to send to
+     * @param text the text to be sent
+     * @param source name of the job the notification is about, may be null
+     * @param priority how urgent the notification is
+     * @param createdAt the time the notification was created, in milliseconds since the epoch
+     */
+    IMNotification(final IMMessageTarget target, final String text, final String source,
+            final IMNotificationPriority priority, final long createdAt)
+    {
+        Assert.isNotNull(target, "Parameter 'target' must not be null.");
+        Assert.isNotNull(text, "Parameter 'text' must not be null.");
+        Assert.isNotNull(priority, "Parameter 'priority' must not be null.");
+        this.priority = priority;
+        this.target = target;
+        this.text = text;
+        this.source = source;
+        this.createdAt = createdAt;
+    }
+
+    public IMMessageTarget getTarget()
+    {
+        return this.target;
+    }
+
+    public String getText()
+    {
+        return this.text;
+    }
+
+    public String getSource()
+    {
+        return this.source;
+    }
+
+    /**
+     * @return the time this notification was created, in milliseconds since the epoch
+     */
+    public long getCreatedAt()
+    {
+        return this.createdAt;
+    }
+
+    public IMNotificationPriority getPriority()
+    {
+        return this.priority;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.target + ": " + this.text;
+    }
+}
@@ -0,0 +1,755 @@
+package hudson.plugins.sametime.im;
+
+import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends notifications asynchronously, so that a slow or unreachable IM server never
+ * holds up a build. Jobs are queued in a bounded queue and drained by a small pool
+ * of worker threads; what happens when the queue is full is decided by an IMOverflowPolicy.
+ * Each job holds notifications of one IMNotificationPriority, and the queue hands out the most urgent
+ * jobs first, so that failure alerts overtake a burst of build start messages. A queued build start
+ * message is superseded by a newer one for the same job and targets, and is dropped once it is
+ * {@link #LOW_PRIORITY_MAX_AGE} old.
+ * While an IMCircuitBreaker is open, jobs are held back instead of sent, and queued again once it lets sends through;
+ * without an outbox to keep them in, they fail right away.
+ * Each job has its users looked up in one go, then fans out to its targets through an IMFanOut and logs one
+ * summary of the results. Targets the fan-out had no time for are queued again as a job of their own.
+ * If an IMOutbox is given, notifications are journaled before they are queued and marked done
+ * once their delivery has completed, so that they survive a restart. With a digest window, notifications
+ * to the same recipient pass through an IMDigester before they are queued.
+ */
+public class IMNotificationDispatcher
+{
+    private static final Logger log = Logger.getLogger(IMNotificationDispatcher.class.getName());
+    /** How long a worker waits for the deliveries of one job before reporting them, in milliseconds */
+    static final long FAN_OUT_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+    /** How long a job waits for the connection to become ready, in milliseconds */
+    static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    /** How long a job waits for its journal records to reach the disk, in milliseconds */
+    static final long SYNC_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    /** How old a LOW priority notification may get in the queue before it is not worth sending, in milliseconds */
+    static final long LOW_PRIORITY_MAX_AGE = TimeUnit.MINUTES.toMillis(10);
+    private static final long[] NO_IDS = new long[0];
+    /** Most urgent first, oldest first within a priority */
+    private static final Comparator<Runnable> URGENCY = new Comparator<Runnable>() {
+        public int compare(final Runnable a, final Runnable b)
+        {
+            final DispatchJob x = (DispatchJob) a;
+            final DispatchJob y = (DispatchJob) b;
+            final int byPriority = x.priority.compareTo(y.priority);
+            return byPriority != 0 ? byPriority : (x.seq < y.seq ? -1 : (x.seq == y.seq ? 0 : 1));
+        }
+    };
+
+    private final IMConnectionProvider connectionProvider;
+    private final IMOutbox outbox;
+    private final IMRateLimiter rateLimiter;
+    private final IMCircuitBreaker circuitBreaker;
+    private final List<DispatchJob> held = new ArrayList<DispatchJob>();
+    private final IMCircuitBreaker.Listener breakerListener = new IMCircuitBreaker.Listener() {
+        public void stateChanged(final IMCircuitBreaker.State state)
+        {
+            if (state != IMCircuitBreaker.State.OPEN)
+            {
+                // one job as the probe while half-open, all of them once closed
+                releaseHeld(state == IMCircuitBreaker.State.CLOSED ? Integer.MAX_VALUE : 1);
+            }
+        }
+    };
+    private final int workers;
+    private final int capacity;
+    private final IMOverflowPolicy overflowPolicy;
+    private final IMFanOut fanOut;
+    private final long digestWindowMillis;
+    private final IMDigester digester;
+    private final DispatchQueue queue;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong seq = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final IMDeliveryListener deliveryListener = new IMDeliveryListener() {
+        public void deliveryCompleted(final IMDelivery delivery)
+        {
+            if (delivery.isDelivered())
+            {
+                delivered.incrementAndGet();
+                log.fine("Notification to " + delivery.getNotification().getTarget() + " " + delivery);
+            }
+            else if (delivery.isDeferred())
+            {
+                deferred.incrementAndGet();
+                log.fine("Notification to " + delivery.getNotification().getTarget() + " " + delivery);
+            }
+            else
+            {
+                failed.incrementAndGet();
+                log.warning("Notification to " + delivery.getNotification().getTarget() + " " + delivery);
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     * @param name the name of the worker threads
+     * @param connectionProvider where to get the connection to send over
+     * @param workers the number of worker threads
+     * @param capacity the maximum number of queued jobs
+     * @param overflowPolicy what to do if the queue is full
+     * @param fanOutConcurrency how many notifications of one job may be in flight at the same time
+     * @param digestWindowMillis how long notifications to one recipient are collected into a digest, 0 to send them right away
+     * @param outbox the journal to keep unsent notifications in, may be null
+     * @param rateLimiter the limits to send within, may be null
+     * @param circuitBreaker the breaker guarding the connection, may be null
+     */
+    public IMNotificationDispatcher(final String name, final IMConnectionProvider connectionProvider,
+            final int workers, final int capacity, final IMOverflowPolicy overflowPolicy, final int fanOutConcurrency,
+            final long digestWindowMillis, final IMOutbox outbox, final IMRateLimiter rateLimiter,
+            final IMCircuitBreaker circuitBreaker)
+    {
+        Assert.isNotNull(name, "Parameter 'name' must not be null.");
+        Assert.isNotNull(connectionProvider, "Parameter 'connectionProvider' must not be null.");
+        Assert.isNotNull(overflowPolicy, "Parameter 'overflowPolicy' must not be null.");
+        this.connectionProvider = connectionProvider;
+        this.outbox = outbox;
+        this.rateLimiter = rateLimiter;
+        this.circuitBreaker = circuitBreaker;
+        this.workers = workers;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.fanOut = new IMFanOut(fanOutConcurrency, FAN_OUT_TIMEOUT);
+        this.queue = new DispatchQueue(capacity);
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                this.queue, new NamedThreadFactory(name), new OverflowHandler());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.digestWindowMillis = digestWindowMillis;
+        this.digester = digestWindowMillis > 0 ? new IMDigester(name + " digest", digestWindowMillis, new IMDigester.Sink() {
+            public void flushed(final IMNotification digest, final long[] ids)
+            {
+                final List<IMNotification> notifications = new ArrayList<IMNotification>(1);
+                notifications.add(digest);
+                if (!execute(new DispatchJob(notifications, new long[][] { ids })))
+                {
+                    log.warning("Notification queue is full, dropping digest " + digest);
+                }
+            }
+        }) : null;
+        if (circuitBreaker != null)
+        {
+            circuitBreaker.addListener(this.breakerListener);
+        }
+    }
+
+    /**
+     * Queues the given notifications to be sent, as one job per priority.
+     * @param notifications the notifications to send
+     * @return false if a job was dropped because the queue is full; digested notifications are queued later
+     */
+    public boolean dispatch(final List<IMNotification> notifications)
+    {
+        Assert.isNotNull(notifications, "Parameter 'notifications' must not be null.");
+        if (notifications.isEmpty())
+        {
+            return true;
+        }
+        long[] ids = null;
+        if (this.outbox != null)
+        {
+            try
+            {
+                ids = this.outbox.append(notifications);
+            }
+            catch (final IOException e)
+            {
+                log.log(Level.WARNING, "Could not journal notifications, sending them anyway.", e);
+            }
+        }
+        if (this.digester != null)
+        {
+            for (int i = 0; i < notifications.size(); i++)
+            {
+                this.digester.add(notifications.get(i), ids != null ? new long[] { ids[i] } : NO_IDS);
+            }
+            return true;
+        }
+        final long[][] idGroups = new long[notifications.size()][];
+        for (int i = 0; i < idGroups.length; i++)
+        {
+            idGroups[i] = ids != null ? new long[] { ids[i] } : NO_IDS;
+        }
+        return executeByPriority(notifications, idGroups);
+    }
+
+    /**
+     * Queues notifications read back from the outbox. They are already journaled.
+     * @param entries the entries to send, notifications of the same source are sent as one job
+     */
+    public void replay(final List<IMOutbox.Entry> entries)
+    {
+        Assert.isNotNull(entries, "Parameter 'entries' must not be null.");
+        final Map<String, List<IMOutbox.Entry>> bySource = new LinkedHashMap<String, List<IMOutbox.Entry>>();
+        for (final IMOutbox.Entry entry : entries)
+        {
+            final String source = String.valueOf(entry.getNotification().getSource());
+            List<IMOutbox.Entry> job = bySource.get(source);
+            if (job == null)
+            {
+                job = new ArrayList<IMOutbox.Entry>();
+                bySource.put(source, job);
+            }
+            job.add(entry);
+        }
+        for (final List<IMOutbox.Entry> job : bySource.values())
+        {
+            final List<IMNotification> notifications = new ArrayList<IMNotification>(job.size());
+            final long[][] ids = new long[job.size()][];
+            for (int i = 0; i < ids.length; i++)
+            {
+                notifications.add(job.get(i).getNotification());
+                ids[i] = new long[] { job.get(i).getId() };
+            }
+            executeByPriority(notifications, ids);
+        }
+    }
+
+    /**
+     * Splits notifications into one job per priority and queues them, most urgent first.
+     */
+    private boolean executeByPriority(final List<IMNotification> notifications, final long[][] ids)
+    {
+        final Map<IMNotificationPriority, List<Integer>> byPriority =
+                new EnumMap<IMNotificationPriority, List<Integer>>(IMNotificationPriority.class);
+        for (int i = 0; i < notifications.size(); i++)
+        {
+            final IMNotificationPriority priority = notifications.get(i).getPriority();
+            List<Integer> indexes = byPriority.get(priority);
+            if (indexes == null)
+            {
+                indexes = new ArrayList<Integer>();
+                byPriority.put(priority, indexes);
+            }
+            indexes.add(i);
+        }
+        boolean queued = true;
+        for (final List<Integer> indexes : byPriority.values())
+        {
+            final List<IMNotification> job = new ArrayList<IMNotification>(indexes.size());
+            final long[][] jobIds = new long[indexes.size()][];
+            for (int i = 0; i < jobIds.length; i++)
+            {
+                job.add(notifications.get(indexes.get(i)));
+                jobIds[i] = ids[indexes.get(i)];
+            }
+            queued &= execute(new DispatchJob(job, jobIds));
+        }
+        return queued;
+    }
+
+    private boolean execute(final DispatchJob job)
+    {
+        if (job.priority == IMNotificationPriority.LOW)
+        {
+            for (final DispatchJob superseded : this.queue.removeSuperseded(job))
+            {
+                log.fine("Dropping notifications superseded by newer ones for " + job.source + ": " + superseded);
+                discarded(superseded);
+            }
+        }
+        try
+        {
+            this.executor.execute(job);
+            return true;
+        }
+        catch (final RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Signals whether this dispatcher was created with the given settings.
+     */
+    public boolean isConfiguredAs(final int workers, final int capacity, final IMOverflowPolicy overflowPolicy,
+            final int fanOutConcurrency, final long digestWindowMillis)
+    {
+        return this.workers == workers && this.capacity == capacity && this.overflowPolicy == overflowPolicy
+                && this.fanOut.getConcurrency() == fanOutConcurrency && this.digestWindowMillis == digestWindowMillis;
+    }
+
+    /**
+     * @return the number of jobs waiting for a worker
+     */
+    public int getQueueSize()
+    {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of jobs dropped because the queue was full, or because they were stale or superseded
+     */
+    public long getDroppedCount()
+    {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return the number of notifications the IM server accepted
+     */
+    public long getDeliveredCount()
+    {
+        return this.delivered.get();
+    }
+
+    /**
+     * @return the number of notifications that could not be delivered
+     */
+    public long getFailedCount()
+    {
+        return this.failed.get();
+    }
+
+    /**
+     * @return the number of notifications put off until their recipient is reachable
+     */
+    public long getDeferredCount()
+    {
+        return this.deferred.get();
+    }
+
+    /**
+     * @return the number of jobs held back while the circuit breaker is open
+     */
+    public int getHeldCount()
+    {
+        synchronized (this.held)
+        {
+            return this.held.size();
+        }
+    }
+
+    /**
+     * Stops accepting new jobs. Jobs already queued, and digests still collecting, are still sent.
+     * Jobs held back by the circuit breaker stay in the outbox.
+     */
+    public void shutdown()
+    {
+        if (this.circuitBreaker != null)
+        {
+            this.circuitBreaker.removeListener(this.breakerListener);
+        }
+        if (this.digester != null)
+        {
+            this.digester.shutdown();
+        }
+        this.executor.shutdown();
+        synchronized (this.held)
+        {
+            if (!this.held.isEmpty())
+            {
+                log.warning(this.held.size() + " notification jobs held back by the circuit breaker are left in the outbox.");
+                this.held.clear();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new jobs and waits for the queued ones to be sent. What is not sent by the deadline
+     * is abandoned; with an outbox it is replayed after the next start.
+     * @param timeoutMillis how long to wait at most
+     * @return true if everything was sent in time
+     * @throws InterruptedException if the current thread was interrupted while waiting
+     */
+    public boolean drain(final long timeoutMillis) throws InterruptedException
+    {
+        shutdown();
+        if (this.executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS))
+        {
+            return true;
+        }
+        final List<Runnable> left = this.executor.shutdownNow();
+        log.warning("Notification queue not drained within " + TimeUnit.MILLISECONDS.toSeconds(timeoutMillis) + "s, abandoning "
+                + left.size() + " queued job(s) and the ones being sent" + (this.outbox != null ? ", they stay in the outbox." : "."));
+        return false;
+    }
+
+    /**
+     * Holds a job back while the circuit breaker is open.
+     */
+    private void hold(final DispatchJob job)
+    {
+        if (this.outbox == null)
+        {
+            for (int i = 0; i < job.notifications.size(); i++)
+            {
+                completed(IMDelivery.failed(job.notifications.get(i), "IM server is not answering"), job.ids[i]);
+            }
+            return;
+        }
+        synchronized (this.held)
+        {
+            if (this.held.size() < this.capacity)
+            {
+                this.held.add(job);
+                return;
+            }
+        }
+        // not marked done, they are replayed with the outbox
+        log.warning("Too many notifications held back, leaving those for " + job.source + " in the outbox.");
+    }
+
+    /**
+     * Queues held back jobs again.
+     * @param max how many jobs to release at most
+     */
+    private void releaseHeld(final int max)
+    {
+        final List<DispatchJob> released = new ArrayList<DispatchJob>();
+        synchronized (this.held)
+        {
+            while (!this.held.isEmpty() && released.size() < max)
+            {
+                released.add(this.held.remove(0));
+            }
+        }
+        if (!released.isEmpty())
+        {
+            log.info("Sending " + released.size() + " notification jobs held back by the circuit breaker.");
+        }
+        for (final DispatchJob job : released)
+        {
+            execute(job);
+        }
+    }
+
+    private void send(final List<IMNotification> notifications, final long[][] ids)
+    {
+        final String source = notifications.get(0).getSource();
+        try
+        {
+            if (this.outbox != null && !this.outbox.awaitSynced(SYNC_TIMEOUT))
+            {
+                log.warning("Notifications for " + source + " are not on disk yet, sending them anyway.");
+            }
+            final IMConnection connection = this.connectionProvider.awaitConnection(CONNECT_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+            if (connection == null)
+            {
+                for (int i = 0; i < notifications.size(); i++)
+                {
+                    completed(IMDelivery.failed(notifications.get(i), "no IM connection ready"), ids[i]);
+                }
+                return;
+            }
+            resolveTargets(notifications);
+            final List<IMDelivery> deliveries = new ArrayList<IMDelivery>();
+            try
+            {
+                final IMConnection guarded = this.circuitBreaker != null
+                        ? this.circuitBreaker.through(connection) : connection;
+                deliveries.addAll(this.fanOut.send(
+                        this.rateLimiter != null ? this.rateLimiter.through(guarded) : guarded, notifications));
+            }
+            finally
+            {
+                for (int i = 0; i < deliveries.size(); i++)
+                {
+                    completed(deliveries.get(i), ids[i]);
+                }
+            }
+            log.info("Notifications for " + source + ": " + IMFanOut.summarize(deliveries));
+            if (deliveries.size() < notifications.size())
+            {
+                final int sent = deliveries.size();
+                log.info("Queueing the " + (notifications.size() - sent) + " notification(s) for " + source
+                        + " not sent in time again.");
+                requeue(new ArrayList<IMNotification>(notifications.subList(sent, notifications.size())),
+                        Arrays.copyOfRange(ids, sent, ids.length));
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            log.warning("Interrupted while sending notifications for " + source);
+            Thread.currentThread().interrupt();
+        }
+        catch (final Throwable e)
+        {
+            failed.addAndGet(notifications.size());
+            log.log(Level.WARNING, "There was an Error sending notifications for " + source, e);
+        }
+    }
+
+    /**
+     * Queues the notifications of a job that were not sent as a job of their own, with the same outbox ids.
+     * They supersede nothing, as they are older than anything queued meanwhile.
+     */
+    private void requeue(final List<IMNotification> notifications, final long[][] ids)
+    {
+        try
+        {
+            this.executor.execute(new DispatchJob(notifications, ids));
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // logged and counted by the OverflowHandler
+        }
+    }
+
+    /**
+     * Looks up all users of a job in one go, before the fan-out, so that no send waits for the server.
+     * Users that cannot be looked up fail on their own when sent to.
+     */
+    private void resolveTargets(final List<IMNotification> notifications)
+    {
+        final List<IMMessageTarget> targets = new ArrayList<IMMessageTarget>(notifications.size());
+        for (final IMNotification notification : notifications)
+        {
+            targets.add(notification.getTarget());
+        }
+        try
+        {
+            this.connectionProvider.resolveTargets(targets);
+        }
+        catch (final IMException e)
+        {
+            log.log(Level.WARNING, "Could not look up the recipients of " + notifications.get(0).getSource(), e);
+        }
+    }
+
+    /**
+     * Counts and logs a delivery once it completes, and marks it done in the outbox once nothing holds it,
+     * so that a notification kept for a recipient who is away is replayed if it is lost with a restart.
+     */
+    private void completed(final IMDelivery delivery, final long[] ids)
+    {
+        delivery.addListener(this.deliveryListener);
+        if (ids.length > 0)
+        {
+            delivery.addListener(new IMDeliveryListener() {
+                public void deliveryCompleted(final IMDelivery completed)
+                {
+                    completed.whenReleased(new Runnable() {
+                        public void run()
+                        {
+                            for (final long id : ids)
+                            {
+                                outbox.markDone(id);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Marks the notifications of a dropped job as done, they are not to be replayed either.
+     */
+    private void discarded(final Runnable r)
+    {
+        dropped.incrementAndGet();
+        if (r instanceof DispatchJob)
+        {
+            for (final long[] ids : ((DispatchJob) r).ids)
+            {
+                for (final long id : ids)
+                {
+                    this.outbox.markDone(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the notifications of one priority of one build step.
+     */
+    private class DispatchJob implements Runnable
+    {
+        private final List<IMNotification> notifications;
+        /** the outbox ids per notification, more than one for a digest */
+        private final long[][] ids;
+        private final IMNotificationPriority priority;
+        private final String source;
+        private final Set<IMMessageTarget> targets = new HashSet<IMMessageTarget>();
+        private final long createdAt;
+        private final long seq;
+
+        DispatchJob(final List<IMNotification> notifications, final long[][] ids)
+        {
+            this.notifications = notifications;
+            this.ids = ids;
+            IMNotificationPriority priority = notifications.get(0).getPriority();
+            long createdAt = Long.MAX_VALUE;
+            for (final IMNotification notification : notifications)
+            {
+                priority = priority.max(notification.getPriority());
+                createdAt = Math.min(createdAt, notification.getCreatedAt());
+                this.targets.add(notification.getTarget());
+            }
+            this.priority = priority;
+            this.source = notifications.get(0).getSource();
+            this.createdAt = createdAt;
+            this.seq = IMNotificationDispatcher.this.seq.getAndIncrement();
+        }
+
+        public void run()
+        {
+            if (this.priority == IMNotificationPriority.LOW
+                    && System.currentTimeMillis() - this.createdAt > LOW_PRIORITY_MAX_AGE)
+            {
+                log.info("Dropping stale notifications for " + this.source + ", they waited more than "
+                        + TimeUnit.MILLISECONDS.toMinutes(LOW_PRIORITY_MAX_AGE) + " minutes.");
+                discarded(this);
+                return;
+            }
+            if (circuitBreaker != null && !circuitBreaker.tryAcquire())
+            {
+                hold(this);
+                return;
+            }
+            send(this.notifications, this.ids);
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.notifications.toString();
+        }
+    }
+
+    /**
+     * Applies the IMOverflowPolicy when the queue is full.
+     */
+    private class OverflowHandler implements RejectedExecutionHandler
+    {
+        public void rejectedExecution(final Runnable r, final ThreadPoolExecutor e)
+        {
+            if (e.isShutdown())
+            {
+                log.warning("Dispatcher is shut down, dropping notifications " + r);
+                // not marked done, they are replayed with the outbox
+                dropped.incrementAndGet();
+                throw new RejectedExecutionException();
+            }
+            if (overflowPolicy == IMOverflowPolicy.CALLER_RUNS)
+            {
+                r.run();
+                return;
+            }
+            // never drop a job for a less urgent one
+            final DispatchJob victim = queue.removeLeastUrgent((DispatchJob) r,
+                    overflowPolicy == IMOverflowPolicy.DISCARD_OLDEST);
+            if (victim != null)
+            {
+                log.warning("Notification queue is full, dropping " + victim.priority + " notifications " + victim);
+                discarded(victim);
+                e.execute(r);
+                return;
+            }
+            log.warning("Notification queue is full, dropping notifications " + r);
+            discarded(r);
+            throw new RejectedExecutionException();
+        }
+    }
+
+    /**
+     * A PriorityBlockingQueue ordered by {@link #URGENCY}, bounded like an ArrayBlockingQueue.
+     */
+    private static class DispatchQueue extends PriorityBlockingQueue<Runnable>
+    {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        DispatchQueue(final int capacity)
+        {
+            super(Math.min(capacity, 64), URGENCY);
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized boolean offer(final Runnable r)
+        {
+            return size() < this.capacity && super.offer(r);
+        }
+
+        @Override
+        public int remainingCapacity()
+        {
+            return Math.max(0, this.capacity - size());
+        }
+
+        /**
+         * Removes the least urgent job, the oldest among equally urgent ones, to make room for another one.
+         * @param job the job that needs room
+         * @param orEquallyUrgent whether a job as urgent as the given one may be removed
+         * @return the removed job, or null if there is no job urgent enough to give way
+         */
+        synchronized DispatchJob removeLeastUrgent(final DispatchJob job, final boolean orEquallyUrgent)
+        {
+            DispatchJob victim = null;
+            for (final Runnable r : this)
+            {
+                final DispatchJob queued = (DispatchJob) r;
+                if (victim == null || queued.priority.compareTo(victim.priority) > 0
+                        || (queued.priority == victim.priority && queued.seq < victim.seq))
+                {
+                    victim = queued;
+                }
+            }
+            if (victim == null)
+            {
+                return null;
+            }
+            final int lessUrgent = victim.priority.compareTo(job.priority);
+            if ((lessUrgent > 0 || (orEquallyUrgent && lessUrgent == 0)) && remove(victim))
+            {
+                return victim;
+            }
+            return null;
+        }
+
+        /**
+         * Removes the queued jobs of the same priority and source as the given one, going to the same targets;
+         * they are outdated by it. Digests of several jobs supersede nothing.
+         * @return the removed jobs
+         */
+        synchronized List<DispatchJob> removeSuperseded(final DispatchJob job)
+        {
+            final List<DispatchJob> superseded = new ArrayList<DispatchJob>();
+            if (job.source == null || IMDigester.DIGEST_SOURCE.equals(job.source))
+            {
+                return superseded;
+            }
+            for (final Runnable r : this)
+            {
+                final DispatchJob queued = (DispatchJob) r;
+                if (queued.priority == job.priority && job.source.equals(queued.source)
+                        && job.targets.equals(queued.targets) && remove(queued))
+                {
+                    superseded.add(queued);
+                }
+            }
+            return superseded;
+        }
+    }
+}
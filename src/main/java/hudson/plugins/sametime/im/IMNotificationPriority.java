@@ -0,0 +1,37 @@
+package hudson.plugins.sametime.im;
+
+/**
+ * How urgent an IMNotification is. When notifications have to wait, e.g. for a rate limit,
+ * the more urgent ones are sent first.
+ */
+public enum IMNotificationPriority {
+
+    /**
+     * Something broke: failed or unstable builds.
+     */
+    URGENT,
+
+    /**
+     * Messages to the people whose changes broke or fixed a build.
+     */
+    HIGH,
+
+    /**
+     * Successful builds.
+     */
+    NORMAL,
+
+    /**
+     * Build starts. These are the first to go when the dispatcher is overloaded.
+     */
+    LOW;
+
+    /**
+     * @param other another priority
+     * @return the more urgent of the two
+     */
+    public IMNotificationPriority max(final IMNotificationPriority other)
+    {
+        return other.ordinal() < ordinal() ? other : this;
+    }
+}
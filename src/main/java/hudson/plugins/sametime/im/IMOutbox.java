@@ -0,0 +1,594 @@
+package hudson.plugins.sametime.im;
+
+import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A write-ahead journal of the notifications that have not been sent yet, so that they survive a restart.
+ * Every notification is appended before it is dispatched and marked done once its delivery has completed;
+ * whatever is not done when the journal is opened again is handed back for replay.
+ * <p>
+ * The journal is a directory of append-only segment files. A new segment is started once the current one
+ * reaches {@link #SEGMENT_SIZE}, and the oldest segments are deleted as soon as all notifications in them
+ * are done. Appends are only buffered; a background thread forces them to disk every {@link #SYNC_INTERVAL}
+ * milliseconds, so a burst of finishing builds shares one fsync, and dispatcher workers wait for it with
+ * {@link #awaitSynced(long)} before sending.
+ */
+public class IMOutbox
+{
+    /** The size after which a new segment is started, in bytes */
+    static final long SEGMENT_SIZE = 1024 * 1024;
+    /** How often appended records are forced to disk, in milliseconds */
+    static final long SYNC_INTERVAL = 200;
+
+    private static final Logger log = Logger.getLogger(IMOutbox.class.getName());
+    private static final int MAGIC = 0x53544f42; // "STOB"
+    private static final int VERSION = 1;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_DONE = 2;
+    private static final byte PRIORITY_URGENT = 0;
+    private static final byte PRIORITY_HIGH = 1;
+    private static final byte PRIORITY_NORMAL = 2;
+    private static final byte PRIORITY_LOW = 3;
+    private static final byte TARGET_USER = 0;
+    private static final byte TARGET_GROUP_CHAT = 1;
+    private static final byte TARGET_ANNOUNCEMENT = 2;
+    /** The longest target that surely fits into writeUTF */
+    private static final int MAX_TARGET_CHARS = 65535 / 3;
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final ScheduledExecutorService syncer;
+    /** segment number -> number of notifications in it that are not done */
+    private final TreeMap<Integer, Integer> pendingPerSegment = new TreeMap<Integer, Integer>();
+    /** id -> segment number, for the notifications that are not done */
+    private final Map<Long, Integer> segmentOf = new HashMap<Long, Integer>();
+    private int segment;
+    private FileOutputStream segmentFile;
+    private DataOutputStream out;
+    private long nextId = 1;
+    private long written;
+    private long synced;
+    private boolean open;
+
+    /**
+     * A notification read back from the journal.
+     */
+    public static class Entry
+    {
+        private final long id;
+        private final IMNotification notification;
+
+        Entry(final long id, final IMNotification notification)
+        {
+            this.id = id;
+            this.notification = notification;
+        }
+
+        public long getId()
+        {
+            return this.id;
+        }
+
+        public IMNotification getNotification()
+        {
+            return this.notification;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param directory the directory to keep the segments in, created if necessary
+     */
+    public IMOutbox(final File directory)
+    {
+        Assert.isNotNull(directory, "Parameter 'directory' must not be null.");
+        this.directory = directory;
+        this.syncer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("IM outbox sync"));
+    }
+
+    /**
+     * Reads the existing segments, starts a new one and starts syncing.
+     * @return the notifications that were not done when the journal was last closed, oldest first
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized List<Entry> open() throws IOException
+    {
+        if (!this.directory.isDirectory() && !this.directory.mkdirs())
+        {
+            throw new IOException("Could not create " + this.directory);
+        }
+        final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+        final int[] segments = listSegments();
+        for (final int number : segments)
+        {
+            read(number, pending);
+        }
+        for (final Entry entry : pending.values())
+        {
+            track(entry.getId(), this.segmentOf.get(entry.getId()));
+        }
+        this.segment = segments.length > 0 ? segments[segments.length - 1] + 1 : 1;
+        startSegment();
+        deleteDoneSegments();
+        this.open = true;
+        this.syncer.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                sync();
+            }
+        }, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        if (!pending.isEmpty())
+        {
+            log.info("Replaying " + pending.size() + " notification(s) from the outbox in " + this.directory);
+        }
+        return new ArrayList<Entry>(pending.values());
+    }
+
+    /**
+     * Appends notifications to the journal. They are on disk after the next sync.
+     * @param notifications the notifications about to be dispatched
+     * @return their ids, in the same order
+     * @throws IOException if they could not be written
+     */
+    public synchronized long[] append(final List<IMNotification> notifications) throws IOException
+    {
+        if (!this.open)
+        {
+            throw new IOException("The outbox is closed.");
+        }
+        // checked up front, a batch is journaled whole or not at all
+        final String[] targets = new String[notifications.size()];
+        for (int i = 0; i < targets.length; i++)
+        {
+            targets[i] = targetString(notifications.get(i).getTarget());
+            if (targets[i].length() > MAX_TARGET_CHARS)
+            {
+                throw new IOException("Too many recipients to journal: " + targets[i].length() + " characters.");
+            }
+        }
+        final long[] ids = new long[notifications.size()];
+        for (int i = 0; i < ids.length; i++)
+        {
+            final IMNotification notification = notifications.get(i);
+            ids[i] = this.nextId++;
+            final byte[] text = notification.getText().getBytes("UTF-8");
+            final String target = targets[i];
+            this.out.writeByte(RECORD_ADD);
+            this.out.writeLong(ids[i]);
+            this.out.writeLong(notification.getCreatedAt());
+            this.out.writeByte(priorityCode(notification.getPriority()));
+            this.out.writeByte(targetKind(notification.getTarget()));
+            this.out.writeUTF(target);
+            this.out.writeUTF(notification.getSource() != null ? notification.getSource() : "");
+            this.out.writeInt(text.length);
+            this.out.write(text);
+            track(ids[i], this.segment);
+        }
+        this.written++;
+        rotateIfFull();
+        return ids;
+    }
+
+    /**
+     * Marks a notification as done, so it is not replayed. Ignored once the journal is closed,
+     * which keeps whatever was still in flight at shutdown for the next start.
+     * @param id the id returned by {@link #append(List)} or {@link Entry#getId()}
+     */
+    public synchronized void markDone(final long id)
+    {
+        if (!this.open)
+        {
+            return;
+        }
+        final Integer number = this.segmentOf.remove(id);
+        if (number == null)
+        {
+            return;
+        }
+        try
+        {
+            this.out.writeByte(RECORD_DONE);
+            this.out.writeLong(id);
+            this.written++;
+            final int left = this.pendingPerSegment.get(number) - 1;
+            this.pendingPerSegment.put(number, left);
+            if (left == 0)
+            {
+                deleteDoneSegments();
+            }
+            rotateIfFull();
+        }
+        catch (final IOException e)
+        {
+            log.log(Level.WARNING, "Could not mark notification " + id + " as done in the outbox.", e);
+        }
+    }
+
+    /**
+     * Waits until everything appended so far has been forced to disk.
+     * @param timeoutMillis how long to wait at most
+     * @return true if it is on disk
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitSynced(final long timeoutMillis) throws InterruptedException
+    {
+        final long target = this.written;
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (this.open && this.synced < target)
+        {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            wait(remaining);
+        }
+        return this.synced >= target;
+    }
+
+    /**
+     * Syncs one last time and closes the journal.
+     */
+    public void close()
+    {
+        this.syncer.shutdownNow();
+        synchronized (this)
+        {
+            if (!this.open)
+            {
+                return;
+            }
+            this.open = false;
+            try
+            {
+                this.out.flush();
+                this.segmentFile.getChannel().force(false);
+            }
+            catch (final IOException e)
+            {
+                log.log(Level.WARNING, "Could not sync the outbox.", e);
+            }
+            closeSegment();
+            notifyAll();
+            if (!this.segmentOf.isEmpty())
+            {
+                log.info(this.segmentOf.size() + " notification(s) left in the outbox for the next start.");
+            }
+        }
+    }
+
+    /**
+     * @return the number of notifications that are not done
+     */
+    public synchronized int getPendingCount()
+    {
+        return this.segmentOf.size();
+    }
+
+    /**
+     * Flushes the buffer and forces the segment to disk. The fsync runs without holding the lock,
+     * so appends can continue meanwhile.
+     */
+    private void sync()
+    {
+        final FileChannel channel;
+        final long target;
+        synchronized (this)
+        {
+            if (!this.open || this.synced == this.written)
+            {
+                return;
+            }
+            target = this.written;
+            try
+            {
+                this.out.flush();
+            }
+            catch (final IOException e)
+            {
+                log.log(Level.WARNING, "Could not write the outbox.", e);
+                return;
+            }
+            channel = this.segmentFile.getChannel();
+        }
+        try
+        {
+            channel.force(false);
+        }
+        catch (final ClosedChannelException e)
+        {
+            // rotated or closed meanwhile, which forces the segment itself
+        }
+        catch (final IOException e)
+        {
+            log.log(Level.WARNING, "Could not sync the outbox.", e);
+            return;
+        }
+        synchronized (this)
+        {
+            this.synced = Math.max(this.synced, target);
+            notifyAll();
+        }
+    }
+
+    private void track(final long id, final int number)
+    {
+        this.segmentOf.put(id, number);
+        final Integer count = this.pendingPerSegment.get(number);
+        this.pendingPerSegment.put(number, count != null ? count + 1 : 1);
+    }
+
+    private void rotateIfFull() throws IOException
+    {
+        if (this.out.size() < SEGMENT_SIZE)
+        {
+            return;
+        }
+        this.out.flush();
+        this.segmentFile.getChannel().force(false);
+        this.synced = this.written;
+        notifyAll();
+        closeSegment();
+        this.segment++;
+        startSegment();
+        deleteDoneSegments();
+    }
+
+    private void startSegment() throws IOException
+    {
+        this.segmentFile = new FileOutputStream(segmentFile(this.segment));
+        this.out = new DataOutputStream(new BufferedOutputStream(this.segmentFile));
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        if (!this.pendingPerSegment.containsKey(this.segment))
+        {
+            this.pendingPerSegment.put(this.segment, 0);
+        }
+    }
+
+    private void closeSegment()
+    {
+        try
+        {
+            this.out.close();
+        }
+        catch (final IOException e)
+        {
+            log.log(Level.FINE, "IOException caught!", e);
+        }
+    }
+
+    /**
+     * Deletes the oldest segments as long as all their notifications are done. Only a prefix is deleted,
+     * because the done records of a segment's notifications may be in any later segment.
+     */
+    private void deleteDoneSegments()
+    {
+        while (!this.pendingPerSegment.isEmpty())
+        {
+            final Map.Entry<Integer, Integer> oldest = this.pendingPerSegment.firstEntry();
+            if (oldest.getKey() == this.segment || oldest.getValue() > 0)
+            {
+                return;
+            }
+            this.pendingPerSegment.remove(oldest.getKey());
+            final File file = segmentFile(oldest.getKey());
+            if (file.exists() && !file.delete())
+            {
+                log.warning("Could not delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a segment into the pending map. A record cut off by a crash ends the segment.
+     */
+    private void read(final int number, final Map<Long, Entry> pending)
+    {
+        final File file = segmentFile(number);
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                log.warning("Ignoring " + file + ", it was not written by this version of the plugin.");
+                return;
+            }
+            this.pendingPerSegment.put(number, 0);
+            while (true)
+            {
+                final byte type = in.readByte();
+                final long id = in.readLong();
+                this.nextId = Math.max(this.nextId, id + 1);
+                if (type == RECORD_DONE)
+                {
+                    pending.remove(id);
+                    this.segmentOf.remove(id);
+                    continue;
+                }
+                if (type != RECORD_ADD)
+                {
+                    log.warning("Unknown record in " + file + ", ignoring the rest of it.");
+                    return;
+                }
+                final long createdAt = in.readLong();
+                final IMNotificationPriority priority = toPriority(in.readByte());
+                if (priority == null)
+                {
+                    log.warning("Unknown priority in " + file + ", ignoring the rest of it.");
+                    return;
+                }
+                final byte targetKind = in.readByte();
+                final String target = in.readUTF();
+                final String source = in.readUTF();
+                final byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                final IMMessageTarget imTarget = toTarget(targetKind, target);
+                pending.put(id, new Entry(id, new IMNotification(imTarget, new String(text, "UTF-8"),
+                        source.length() > 0 ? source : null, priority, createdAt)));
+                this.segmentOf.put(id, number);
+            }
+        }
+        catch (final EOFException e)
+        {
+            // end of the segment
+        }
+        catch (final IOException e)
+        {
+            log.log(Level.WARNING, "Could not read " + file + " completely.", e);
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (final IOException e)
+                {
+                    log.log(Level.FINE, "IOException caught!", e);
+                }
+            }
+        }
+    }
+
+    private int[] listSegments()
+    {
+        final String[] names = this.directory.list(new FilenameFilter() {
+            public boolean accept(final File dir, final String name)
+            {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        final List<Integer> numbers = new ArrayList<Integer>();
+        if (names != null)
+        {
+            for (final String name : names)
+            {
+                try
+                {
+                    numbers.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                }
+                catch (final NumberFormatException e)
+                {
+                    log.fine("Ignoring " + name + " in the outbox.");
+                }
+            }
+        }
+        final int[] result = new int[numbers.size()];
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = numbers.get(i);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * The codes are part of the file format, they must not change when priorities are added or reordered.
+     */
+    private static byte priorityCode(final IMNotificationPriority priority)
+    {
+        switch (priority)
+        {
+        case URGENT :
+            return PRIORITY_URGENT;
+        case HIGH :
+            return PRIORITY_HIGH;
+        case LOW :
+            return PRIORITY_LOW;
+        default :
+            return PRIORITY_NORMAL;
+        }
+    }
+
+    private static IMNotificationPriority toPriority(final byte code)
+    {
+        switch (code)
+        {
+        case PRIORITY_URGENT :
+            return IMNotificationPriority.URGENT;
+        case PRIORITY_HIGH :
+            return IMNotificationPriority.HIGH;
+        case PRIORITY_NORMAL :
+            return IMNotificationPriority.NORMAL;
+        case PRIORITY_LOW :
+            return IMNotificationPriority.LOW;
+        default :
+            return null;
+        }
+    }
+
+    private static byte targetKind(final IMMessageTarget target)
+    {
+        if (target instanceof GroupChatIMMessageTarget)
+        {
+            return TARGET_GROUP_CHAT;
+        }
+        return target instanceof AnnouncementIMMessageTarget ? TARGET_ANNOUNCEMENT : TARGET_USER;
+    }
+
+    /**
+     * An announcement is stored as its recipients, one per line.
+     */
+    private static String targetString(final IMMessageTarget target)
+    {
+        if (!(target instanceof AnnouncementIMMessageTarget))
+        {
+            return target.toString();
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final String recipient : ((AnnouncementIMMessageTarget) target).getRecipients())
+        {
+            sb.append(recipient).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static IMMessageTarget toTarget(final byte kind, final String target)
+    {
+        switch (kind)
+        {
+        case TARGET_GROUP_CHAT :
+            return new GroupChatIMMessageTarget(target);
+        case TARGET_ANNOUNCEMENT :
+            return new AnnouncementIMMessageTarget(Arrays.asList(target.split("\n")));
+        default :
+            return new DefaultIMMessageTarget(target);
+        }
+    }
+
+    private File segmentFile(final int number)
+    {
+        return new File(this.directory, SEGMENT_PREFIX + String.format("%08d", number) + SEGMENT_SUFFIX);
+    }
+}
@@ -0,0 +1,23 @@
+package hudson.plugins.sametime.im;
+
+/**
+ * What the IMNotificationDispatcher does with a job when its queue is full.
+ * The discarding policies never drop a job to make room for a less urgent one.
+ */
+public enum IMOverflowPolicy {
+
+    /**
+     * Drop the job that was just submitted, unless a less urgent one is queued.
+     */
+    DISCARD_NEWEST,
+
+    /**
+     * Drop the oldest of the least urgent queued jobs to make room for the new one.
+     */
+    DISCARD_OLDEST,
+
+    /**
+     * Send from the submitting thread. Nothing is lost, but the build waits for the IM server.
+     */
+    CALLER_RUNS;
+}
@@ -14,6 +14,7 @@ import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -45,22 +46,33 @@ public abstract class IMPublisher extends Notifier
         Assert.isNotNull(targetsAsString, "Parameter 'targetsAsString' must not be null.");
 
         final String[] split = targetsAsString.split(",");
-        final IMMessageTargetConverter messageTargetConverter = getIMMessageTargetConverter();
+        final List<String> targetNames = new ArrayList<String>();
         for (final String target : split)
         {
             log.info("target:" + target);
             final String targetClean = target.trim();
             log.info("targetClean:" + targetClean);
-            IMMessageTarget messageTarget = messageTargetConverter.fromString(targetClean);
-            if (messageTarget != null)
+            if (targetClean.length() > 0)
             {
-                log.info("messageTarget:" + messageTarget.toString());
-                this.targets.add(messageTarget);
+                targetNames.add(targetClean);
             }
-            else{
-                log.info("messageTarget is null!!");
+        }
+        // only remember the names here, they are resolved when a notification is sent;
+        // a leading '*' marks a group chat, which is not a user and needs no resolving
+        final List<String> userNames = new ArrayList<String>();
+        for (final String targetName : targetNames)
+        {
+            if (targetName.startsWith("*") && targetName.length() > 1)
+            {
+                this.targets.add(new GroupChatIMMessageTarget(targetName.substring(1).trim()));
+            }
+            else
+            {
+                this.targets.add(new DefaultIMMessageTarget(targetName));
+                userNames.add(targetName);
             }
         }
+        preResolveTargets(userNames);
         log.info("targets:" + this.targets.toString());
         if (notificationStrategyString == null) {
         	this.notificationStrategy = NotificationStrategy.STATECHANGE_ONLY;
@@ -77,8 +89,51 @@ public abstract class IMPublisher extends Notifier
         this.notifyFixers = notifyFixers;
     }
 
+    /**
+     * Called after the publisher was created or loaded, so it can resolve its targets in the background
+     * before they are needed. Must not block; the default does nothing.
+     * @param targetNames the names of the configured targets
+     */
+    protected void preResolveTargets(final Collection<String> targetNames)
+    {
+    }
+
+    /**
+     * Starts resolving the targets of a publisher loaded from disk.
+     * @return this publisher
+     */
+    protected Object readResolve()
+    {
+        final List<String> targetNames = new ArrayList<String>();
+        for (final IMMessageTarget target : this.targets)
+        {
+            if (!(target instanceof GroupChatIMMessageTarget))
+            {
+                targetNames.add(target.toString());
+            }
+        }
+        preResolveTargets(targetNames);
+        return this;
+    }
+
     protected abstract IMConnection getIMConnection() throws IMException;
 
+    /**
+     * The number of users above which a notification is sent to all of them as one announcement,
+     * instead of one message each. The default, 0, never does.
+     * @return the threshold, 0 for none
+     */
+    protected int getBulkThreshold()
+    {
+        return 0;
+    }
+
+    /**
+     * Returns the dispatcher that sends this publisher's notifications in the background.
+     * @return the dispatcher, or null if no notifications are sent any more, e.g. while Jenkins shuts down
+     */
+    protected abstract IMNotificationDispatcher getNotificationDispatcher();
+
     protected IMMessageTargetConverter getIMMessageTargetConverter()
     {
         return IMPublisher.CONVERTER;
@@ -142,6 +197,7 @@ public abstract class IMPublisher extends Notifier
     {
         Assert.isNotNull(build, "Parameter 'build' must not be null.");
         Assert.isNotNull(buildListener, "Parameter 'arg2' must not be null.");
+        final List<IMNotification> notifications = new ArrayList<IMNotification>();
         if (getNotificationStrategy().notificationWanted(build))
         {
         	final StringBuffer sb = new StringBuffer();
@@ -163,19 +219,15 @@ public abstract class IMPublisher extends Notifier
 	        	}
         	}
         	final String msg = sb.toString();
+            final IMNotificationPriority priority = build.getResult().isWorseThan(Result.SUCCESS)
+                    ? IMNotificationPriority.URGENT : IMNotificationPriority.NORMAL;
 
-            for (final IMMessageTarget target : getNotificationTargets())
+            for (final IMNotification notification : createNotifications(getNotificationTargets(), msg,
+                    build.getProject().getName(), priority))
             {
-                try
-                {
-                    buildListener.getLogger().append("Sending Sametime notification to:\"" + target.toString() + "\"" + "\n");
-                    buildListener.getLogger().append("Sending Sametime message: " + msg + "\n");
-                    getIMConnection().send(target, msg);
-                }
-                catch (final Throwable e)
-                {
-                    buildListener.getLogger().append("There was an Error sending notification to: " + target.toString() + "\n");
-                }
+                buildListener.getLogger().append("Sending Sametime notification to:\"" + notification.getTarget().toString() + "\"" + "\n");
+                buildListener.getLogger().append("Sending Sametime message: " + msg + "\n");
+                notifications.add(notification);
             }
         }
 
@@ -184,13 +236,8 @@ public abstract class IMPublisher extends Notifier
         	.append(build.getProject().getName()).append(": ")
         	.append(Hudson.getInstance().getRootUrl()).append(build.getUrl())
         	.toString();
-        	for (final IMMessageTarget target : calculateSuspectsTargets(build.getChangeSet())) {
-        		try {
-        			getIMConnection().send(target, message);
-        		} catch (final Throwable e) {
-        			buildListener.getLogger().append("There was an Error sending suspect notification to: " + target.toString() + "\n");
-        		}
-        	}
+        	notifications.addAll(createNotifications(calculateSuspectsTargets(build.getChangeSet()), message,
+        	        build.getProject().getName(), IMNotificationPriority.HIGH));
         }
 
         if (this.notifyFixers && build.getResult() == Result.SUCCESS &&
@@ -199,15 +246,11 @@ public abstract class IMPublisher extends Notifier
         	.append(build.getProject().getName()).append(": ")
         	.append(Hudson.getInstance().getRootUrl()).append(build.getUrl())
         	.toString();
-        	for (final IMMessageTarget target : calculateSuspectsTargets(build.getChangeSet())) {
-        		try {
-        			getIMConnection().send(target, message);
-        		} catch (final Throwable e) {
-        			buildListener.getLogger().append("There was an Error sending fixer notification to: " + target.toString() + "\n");
-        		}
-        	}
+        	notifications.addAll(createNotifications(calculateSuspectsTargets(build.getChangeSet()), message,
+        	        build.getProject().getName(), IMNotificationPriority.HIGH));
         }
 
+        dispatch(notifications, buildListener);
         return true;
     }
 
@@ -230,16 +273,15 @@ public abstract class IMPublisher extends Notifier
 					sb.append(")");
 				}
 				final String msg = sb.toString();
+				final List<IMNotification> notifications = new ArrayList<IMNotification>();
 				for (final IMMessageTarget target : getNotificationTargets()) {
 					// only notify group chats
 					if (target instanceof GroupChatIMMessageTarget) {
-		                try {
-		                    getIMConnection().send(target, msg);
-		                } catch (final Throwable e) {
-		                    buildListener.getLogger().append("There was an Error sending notification to: " + target.toString() + "\n");
-		                }
+						notifications.add(new IMNotification(target, msg, build.getProject().getName(),
+						        IMNotificationPriority.LOW));
 					}
 	            }
+				dispatch(notifications, buildListener);
 			}
 		} catch (Throwable t) {
 			// ignore: never, ever cancel a build because a notification fails
@@ -247,6 +289,51 @@ public abstract class IMPublisher extends Notifier
 		return true;
 	}
 
+	/**
+	 * Creates one notification per target, or, if there are more users than the bulk threshold,
+	 * a single announcement to all of them. Group chats always get their own.
+	 */
+	private List<IMNotification> createNotifications(final Collection<IMMessageTarget> targets, final String msg,
+			final String source, final IMNotificationPriority priority) {
+		final List<IMNotification> notifications = new ArrayList<IMNotification>();
+		final List<String> users = new ArrayList<String>();
+		for (final IMMessageTarget target : targets) {
+			if (target instanceof GroupChatIMMessageTarget) {
+				notifications.add(new IMNotification(target, msg, source, priority));
+			} else {
+				users.add(target.toString());
+			}
+		}
+		final int threshold = getBulkThreshold();
+		if (threshold > 0 && users.size() > threshold) {
+			notifications.add(new IMNotification(new AnnouncementIMMessageTarget(users), msg, source, priority));
+			return notifications;
+		}
+		for (final IMMessageTarget target : targets) {
+			if (!(target instanceof GroupChatIMMessageTarget)) {
+				notifications.add(new IMNotification(target, msg, source, priority));
+			}
+		}
+		return notifications;
+	}
+
+	/**
+	 * Hands the notifications over to the dispatcher, so the build does not wait for the IM server.
+	 */
+	private void dispatch(final List<IMNotification> notifications, final BuildListener buildListener) {
+		if (notifications.isEmpty()) {
+			return;
+		}
+		final IMNotificationDispatcher dispatcher = getNotificationDispatcher();
+		if (dispatcher == null) {
+			buildListener.getLogger().append("Sametime notifications are shut down, " + notifications.size() + " notification(s) not sent.\n");
+			return;
+		}
+		if (! dispatcher.dispatch(notifications)) {
+			buildListener.getLogger().append("Sametime notification queue is full, " + notifications.size() + " notification(s) dropped.\n");
+		}
+	}
+
 	private Collection<IMMessageTarget> calculateSuspectsTargets(ChangeLogSet<? extends Entry> changeLogSet) {
 		Set<IMMessageTarget> suspects = new HashSet<IMMessageTarget>();
 
@@ -254,10 +341,8 @@ public abstract class IMPublisher extends Notifier
 			for (Entry e : changeLogSet) {
 				String userId = e.getAuthor().getId();
 				if (userId != null && userId.length() > 0) {
-					try {
-						suspects.add(CONVERTER.fromString(userId));
-					} catch (final IMMessageTargetConversionException dontCare) {
-					}
+					// resolved when sent; concurrent builds sharing culprits join each other's lookups
+					suspects.add(new DefaultIMMessageTarget(userId));
 				}
 			}
 		}
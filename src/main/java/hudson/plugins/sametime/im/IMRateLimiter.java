@@ -0,0 +1,350 @@
+package hudson.plugins.sametime.im;
+
+import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the bot below the message rates the IM server tolerates, with one token bucket for all messages and
+ * one per recipient. Messages over the limit are queued, not dropped, and leave the queue by
+ * IMNotificationPriority, oldest first within a priority, so failures overtake success and start messages.
+ * A recipient that is over its own limit does not hold up the others. One thread does the sending.
+ */
+public class IMRateLimiter
+{
+    /** A bucket holds this many seconds worth of messages, which is the largest burst */
+    static final int BURST_SECONDS = 10;
+
+    private static final Logger log = Logger.getLogger(IMRateLimiter.class.getName());
+
+    private final String name;
+    private final TreeSet<Queued> queue = new TreeSet<Queued>(new Comparator<Queued>() {
+        public int compare(final Queued a, final Queued b)
+        {
+            final int byPriority = a.delivery.getNotification().getPriority()
+                    .compareTo(b.delivery.getNotification().getPriority());
+            return byPriority != 0 ? byPriority : (a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1));
+        }
+    });
+    private final Map<String, IMTokenBucket> recipientBuckets = new HashMap<String, IMTokenBucket>();
+    private IMTokenBucket globalBucket;
+    private int perMinute;
+    private int perRecipientPerMinute;
+    private long seq;
+    private Thread sender;
+    private boolean stopped;
+    private long sent;
+    private long waited;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long backlogWaited;
+    private long backlogMaxWaitMillis;
+
+    /**
+     * A message waiting for a token.
+     */
+    private static class Queued
+    {
+        private final IMConnection connection;
+        private final IMDelivery delivery;
+        private final long seq;
+        private final long queuedAt = System.nanoTime();
+
+        Queued(final IMConnection connection, final IMDelivery delivery, final long seq)
+        {
+            this.connection = connection;
+            this.delivery = delivery;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param name the name of the sender thread
+     */
+    public IMRateLimiter(final String name)
+    {
+        Assert.isNotNull(name, "Parameter 'name' must not be null.");
+        this.name = name;
+    }
+
+    /**
+     * Sets the limits. Buckets start over when a limit changes.
+     * @param perMinute messages per minute for all recipients together, 0 for no limit
+     * @param perRecipientPerMinute messages per minute to the same recipient, 0 for no limit
+     */
+    public synchronized void setLimits(final int perMinute, final int perRecipientPerMinute)
+    {
+        if (perMinute != this.perMinute)
+        {
+            this.perMinute = perMinute;
+            this.globalBucket = perMinute > 0 ? new IMTokenBucket(perMinute, burst(perMinute), System.nanoTime()) : null;
+        }
+        if (perRecipientPerMinute != this.perRecipientPerMinute)
+        {
+            this.perRecipientPerMinute = perRecipientPerMinute;
+            this.recipientBuckets.clear();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wraps a connection so that sending over it obeys the limits.
+     * @param connection the connection to send over
+     * @return the limited connection, or the connection itself if there are no limits
+     */
+    public synchronized IMConnection through(final IMConnection connection)
+    {
+        if (this.perMinute <= 0 && this.perRecipientPerMinute <= 0)
+        {
+            return connection;
+        }
+        return new IMConnection() {
+            public IMDelivery send(final IMNotification notification) throws IMException
+            {
+                return enqueue(connection, notification);
+            }
+
+            public void setPresence(final IMPresence presence) throws IMException
+            {
+                connection.setPresence(presence);
+            }
+
+            public void close()
+            {
+                connection.close();
+            }
+        };
+    }
+
+    /**
+     * Stops the sender. Messages still queued fail.
+     */
+    public void shutdown()
+    {
+        final Queued[] left;
+        synchronized (this)
+        {
+            this.stopped = true;
+            left = this.queue.toArray(new Queued[this.queue.size()]);
+            this.queue.clear();
+            notifyAll();
+        }
+        for (final Queued q : left)
+        {
+            q.delivery.fail("rate limiter stopped");
+        }
+    }
+
+    /**
+     * @return the number of messages waiting for a token
+     */
+    public synchronized int getQueueSize()
+    {
+        return this.queue.size();
+    }
+
+    /**
+     * @return the average time messages spent waiting for a token, in milliseconds
+     */
+    public synchronized long getAverageWaitMillis()
+    {
+        return this.sent > 0 ? this.totalWaitMillis / this.sent : 0;
+    }
+
+    /**
+     * @return the longest time a message spent waiting for a token, in milliseconds
+     */
+    public synchronized long getMaxWaitMillis()
+    {
+        return this.maxWaitMillis;
+    }
+
+    /**
+     * @return the number of messages that had to wait for a token
+     */
+    public synchronized long getWaitedCount()
+    {
+        return this.waited;
+    }
+
+    private synchronized IMDelivery enqueue(final IMConnection connection, final IMNotification notification)
+    {
+        final IMDelivery delivery = new IMDelivery(notification);
+        if (this.stopped)
+        {
+            delivery.fail("rate limiter stopped");
+            return delivery;
+        }
+        this.queue.add(new Queued(connection, delivery, this.seq++));
+        if (this.sender == null)
+        {
+            this.sender = new NamedThreadFactory(this.name).newThread(new Runnable() {
+                public void run()
+                {
+                    sendLoop();
+                }
+            });
+            this.sender.start();
+        }
+        notifyAll();
+        return delivery;
+    }
+
+    private void sendLoop()
+    {
+        while (true)
+        {
+            final Queued next;
+            try
+            {
+                next = take();
+            }
+            catch (final InterruptedException e)
+            {
+                return;
+            }
+            if (next == null)
+            {
+                return;
+            }
+            forward(next);
+        }
+    }
+
+    /**
+     * Waits until some queued message may be sent, and takes it.
+     * @return the message, or null once stopped
+     */
+    private synchronized Queued take() throws InterruptedException
+    {
+        while (!this.stopped)
+        {
+            final long now = System.nanoTime();
+            long wait = this.queue.isEmpty() ? 0 : Long.MAX_VALUE;
+            final long globalDelay = this.globalBucket != null ? this.globalBucket.delay(now) : 0;
+            if (!this.queue.isEmpty() && globalDelay > 0)
+            {
+                wait = globalDelay;
+            }
+            else
+            {
+                for (final Iterator<Queued> it = this.queue.iterator(); it.hasNext();)
+                {
+                    final Queued q = it.next();
+                    final IMTokenBucket bucket = recipientBucket(q.delivery.getNotification(), now);
+                    final long delay = bucket != null ? bucket.delay(now) : 0;
+                    if (delay == 0)
+                    {
+                        it.remove();
+                        if (bucket != null)
+                        {
+                            bucket.take();
+                        }
+                        if (this.globalBucket != null)
+                        {
+                            this.globalBucket.take();
+                        }
+                        waited(q, now);
+                        return q;
+                    }
+                    wait = Math.min(wait, delay);
+                }
+            }
+            if (wait == 0)
+            {
+                forgetFullBuckets(now);
+                wait();
+            }
+            else
+            {
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            }
+        }
+        return null;
+    }
+
+    private IMTokenBucket recipientBucket(final IMNotification notification, final long now)
+    {
+        if (this.perRecipientPerMinute <= 0)
+        {
+            return null;
+        }
+        final String key = notification.getTarget().toString();
+        IMTokenBucket bucket = this.recipientBuckets.get(key);
+        if (bucket == null)
+        {
+            bucket = new IMTokenBucket(this.perRecipientPerMinute, burst(this.perRecipientPerMinute), now);
+            this.recipientBuckets.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Drops the buckets of recipients that have not been sent to for a while, they would be full anyway.
+     */
+    private void forgetFullBuckets(final long now)
+    {
+        for (final Iterator<IMTokenBucket> it = this.recipientBuckets.values().iterator(); it.hasNext();)
+        {
+            if (it.next().isFull(now))
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private void waited(final Queued q, final long now)
+    {
+        final long waitMillis = TimeUnit.NANOSECONDS.toMillis(now - q.queuedAt);
+        this.sent++;
+        this.totalWaitMillis += waitMillis;
+        this.maxWaitMillis = Math.max(this.maxWaitMillis, waitMillis);
+        if (waitMillis > 0)
+        {
+            this.waited++;
+            log.fine("Message to " + q.delivery.getNotification().getTarget() + " waited " + waitMillis
+                    + "ms for the rate limit, " + this.queue.size() + " more waiting.");
+            this.backlogWaited++;
+            this.backlogMaxWaitMillis = Math.max(this.backlogMaxWaitMillis, waitMillis);
+        }
+        if (this.queue.isEmpty() && this.backlogWaited > 0)
+        {
+            log.info("Rate limit backlog cleared: " + this.backlogWaited + " message(s) had to wait, the longest "
+                    + this.backlogMaxWaitMillis + "ms.");
+            this.backlogWaited = 0;
+            this.backlogMaxWaitMillis = 0;
+        }
+    }
+
+    private void forward(final Queued q)
+    {
+        try
+        {
+            q.connection.send(q.delivery.getNotification()).addListener(new IMDeliveryListener() {
+                public void deliveryCompleted(final IMDelivery completed)
+                {
+                    q.delivery.completeAs(completed);
+                }
+            });
+        }
+        catch (final Exception e)
+        {
+            log.log(Level.FINE, "Could not send to " + q.delivery.getNotification().getTarget(), e);
+            q.delivery.fail(e.toString());
+        }
+    }
+
+    private static int burst(final int perMinute)
+    {
+        return Math.max(1, perMinute * BURST_SECONDS / 60);
+    }
+}
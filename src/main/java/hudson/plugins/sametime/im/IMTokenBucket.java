@@ -0,0 +1,61 @@
+package hudson.plugins.sametime.im;
+
+/**
+ * A token bucket: allows a burst of up to <code>capacity</code> messages, refilled at a steady rate.
+ * Not thread-safe, the IMRateLimiter guards it.
+ */
+class IMTokenBucket
+{
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * Constructor. The bucket starts full.
+     * @param perMinute the steady rate, in messages per minute
+     * @param capacity the largest burst
+     * @param now the current time, in nanoseconds
+     */
+    IMTokenBucket(final int perMinute, final int capacity, final long now)
+    {
+        this.capacity = Math.max(1, capacity);
+        this.tokensPerNano = perMinute / 60e9;
+        this.tokens = this.capacity;
+        this.refilledAt = now;
+    }
+
+    /**
+     * @param now the current time, in nanoseconds
+     * @return how long until a token is available, in nanoseconds; 0 if one is available now
+     */
+    long delay(final long now)
+    {
+        refill(now);
+        return this.tokens >= 1 ? 0 : (long) Math.ceil((1 - this.tokens) / this.tokensPerNano);
+    }
+
+    /**
+     * Takes a token. Only call after {@link #delay(long)} returned 0.
+     */
+    void take()
+    {
+        this.tokens -= 1;
+    }
+
+    /**
+     * @param now the current time, in nanoseconds
+     * @return true if the bucket is full again, so forgetting it changes nothing
+     */
+    boolean isFull(final long now)
+    {
+        refill(now);
+        return this.tokens >= this.capacity;
+    }
+
+    private void refill(final long now)
+    {
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.refilledAt) * this.tokensPerNano);
+        this.refilledAt = now;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import hudson.plugins.sametime.tools.Assert;
+import hudson.util.Secret;
+
+/**
+ * The credentials of one bot login.
+ */
+final class SametimeAccount
+{
+    private final String nickname;
+    /** stored encrypted with the descriptor's configuration */
+    private final Secret password;
+
+    /**
+     * Constructor.
+     * @param nickname The Sametime ID to log in with
+     * @param password Its password
+     */
+    SametimeAccount(final String nickname, final Secret password)
+    {
+        Assert.isNotNull(nickname, "Parameter 'nickname' must not be null.");
+        Assert.isNotNull(password, "Parameter 'password' must not be null.");
+        this.nickname = nickname;
+        this.password = password;
+    }
+
+    String getNickname()
+    {
+        return this.nickname;
+    }
+
+    /**
+     * @return The password in plain text, to log in with only
+     */
+    String getPassword()
+    {
+        return this.password.getPlainText();
+    }
+
+    Secret getSecret()
+    {
+        return this.password;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return this.nickname;
+    }
+}
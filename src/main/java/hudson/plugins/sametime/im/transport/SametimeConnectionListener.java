@@ -0,0 +1,23 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+/**
+ * Is told when a SametimeIMConnection has logged in or lost its login.
+ * Called on the toolkit's event thread, so implementations must not block.
+ */
+interface SametimeConnectionListener
+{
+    /**
+     * The connection has logged in and can send messages.
+     * @param connection The connection
+     */
+    void connected(SametimeIMConnection connection);
+
+    /**
+     * The connection has been logged out, or its login failed. It cannot be used any more.
+     * @param connection The connection
+     */
+    void disconnected(SametimeIMConnection connection);
+}
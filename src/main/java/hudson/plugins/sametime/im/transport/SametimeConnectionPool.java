@@ -0,0 +1,279 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import hudson.plugins.sametime.im.IMCommandEngine;
+import hudson.plugins.sametime.im.IMConnection;
+import hudson.plugins.sametime.im.IMDelivery;
+import hudson.plugins.sametime.im.IMException;
+import hudson.plugins.sametime.im.IMNotification;
+import hudson.plugins.sametime.im.IMPresence;
+import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads the notifications over several bot logins. Each recipient is assigned to one login by
+ * consistent hashing, so that its messages stay in order and reuse one Im, and adding or losing a
+ * login only moves the recipients of that login. Recipients of a login that is down are served by the
+ * next one on the ring, and a health check hands the messages buffered by a dead login to the others.
+ */
+class SametimeConnectionPool implements IMConnection
+{
+    /** How often the logins are checked, in seconds */
+    static final long HEALTH_CHECK_INTERVAL = 15;
+
+    private static final Logger log = Logger.getLogger(SametimeConnectionPool.class.getName());
+
+    private final List<SametimeConnectionSupervisor> members = new ArrayList<SametimeConnectionSupervisor>();
+    private final SametimeHashRing<SametimeConnectionSupervisor> ring = new SametimeHashRing<SametimeConnectionSupervisor>();
+    private final Set<SametimeConnectionSupervisor> down = new HashSet<SametimeConnectionSupervisor>();
+    private final ScheduledExecutorService healthChecker;
+    private final SametimeServerSelector servers;
+
+    /**
+     * Constructor.
+     * @param desc The configuration
+     * @param accounts The logins to use, at least one
+     * @param resolutionCache Where to remember resolved user names
+     * @param presence Where to keep the online status of recipients
+     * @param commands Answers the commands users send to the bot
+     */
+    SametimeConnectionPool(final SametimePublisherDescriptor desc, final List<SametimeAccount> accounts,
+            final SametimeResolutionCache resolutionCache, final SametimePresence presence,
+            final IMCommandEngine commands)
+    {
+        Assert.isNotNull(accounts, "Parameter 'accounts' must not be null.");
+        if (accounts.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one account is needed.");
+        }
+        this.servers = new SametimeServerSelector(desc.getServers(), desc.getPort());
+        for (final SametimeAccount account : accounts)
+        {
+            final SametimeConnectionSupervisor member = new SametimeConnectionSupervisor(desc, account, this.servers,
+                    resolutionCache, presence, commands);
+            this.members.add(member);
+            this.ring.add(account.getNickname(), member);
+        }
+        // each place is entered by the login its messages go to
+        final Map<SametimeConnectionSupervisor, List<String>> places = new HashMap<SametimeConnectionSupervisor, List<String>>();
+        for (final SametimeConnectionSupervisor member : this.members)
+        {
+            places.put(member, new ArrayList<String>());
+        }
+        for (final String place : desc.getInitialGroupChatNames())
+        {
+            places.get(this.ring.ownerOf(place)).add(place);
+        }
+        for (final SametimeConnectionSupervisor member : this.members)
+        {
+            member.setPlaces(places.get(member));
+        }
+        this.healthChecker = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Sametime login health check"));
+    }
+
+    /**
+     * Starts logging in with all accounts.
+     */
+    void start()
+    {
+        this.servers.start();
+        for (final SametimeConnectionSupervisor member : this.members)
+        {
+            member.start();
+        }
+        if (this.members.size() > 1)
+        {
+            this.healthChecker.scheduleWithFixedDelay(new Runnable() {
+                public void run()
+                {
+                    checkHealth();
+                }
+            }, HEALTH_CHECK_INTERVAL, HEALTH_CHECK_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMConnection#send(hudson.plugins.sametime.im.IMNotification)
+     */
+    public IMDelivery send(final IMNotification notification) throws IMException
+    {
+        return memberFor(notification).send(notification);
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMConnection#setPresence(hudson.plugins.sametime.im.IMPresence)
+     */
+    public void setPresence(final IMPresence presence) throws IMException
+    {
+        for (final SametimeConnectionSupervisor member : this.members)
+        {
+            member.setPresence(presence);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMConnection#close()
+     */
+    public void close()
+    {
+        this.healthChecker.shutdownNow();
+        this.servers.stop();
+        for (final SametimeConnectionSupervisor member : this.members)
+        {
+            member.close();
+        }
+    }
+
+    /**
+     * Waits until at least one login has succeeded.
+     * @param timeout How long to wait at most
+     * @param unit The unit of the timeout
+     * @return <code>true</code> if logged in
+     * @throws InterruptedException
+     */
+    boolean awaitLogin(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        if (this.members.size() == 1)
+        {
+            return this.members.get(0).awaitLogin(timeout, unit);
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true)
+        {
+            for (final SametimeConnectionSupervisor member : this.members)
+            {
+                if (member.isLoggedIn())
+                {
+                    return true;
+                }
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            this.members.get(0).awaitLogin(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(200)), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Get a converter of a login that can resolve names.
+     * @return The converter, or <code>null</code> while there is no session
+     */
+    SametimeIMMessageTargetConverter getConverter()
+    {
+        SametimeIMMessageTargetConverter any = null;
+        for (final SametimeConnectionSupervisor member : this.members)
+        {
+            final SametimeIMMessageTargetConverter converter = member.getConverter();
+            if (converter != null && member.isLoggedIn())
+            {
+                return converter;
+            }
+            if (any == null)
+            {
+                any = converter;
+            }
+        }
+        return any;
+    }
+
+    /**
+     * Get the logins of this pool.
+     * @return The logins, in configuration order
+     */
+    List<SametimeConnectionSupervisor> getMembers()
+    {
+        return Collections.unmodifiableList(this.members);
+    }
+
+    /**
+     * Finds the login for a recipient: its own if that is logged in, otherwise the next logged in one on the ring.
+     * If none is logged in, the recipient's own login buffers the message.
+     */
+    private SametimeConnectionSupervisor memberFor(final IMNotification notification)
+    {
+        if (this.members.size() == 1)
+        {
+            return this.members.get(0);
+        }
+        final List<SametimeConnectionSupervisor> walk = this.ring.walk(notification.getTarget().toString());
+        for (final SametimeConnectionSupervisor member : walk)
+        {
+            if (member.isLoggedIn())
+            {
+                return member;
+            }
+        }
+        return walk.get(0);
+    }
+
+    /**
+     * Logs logins going down or coming back, and moves the messages buffered by a dead login
+     * to the logins that are up.
+     */
+    private void checkHealth()
+    {
+        try
+        {
+            for (final SametimeConnectionSupervisor member : this.members)
+            {
+                if (member.isLoggedIn())
+                {
+                    if (this.down.remove(member))
+                    {
+                        log.info("Sametime login " + member + " is back, " + this.down.size() + " login(s) down.");
+                    }
+                    continue;
+                }
+                if (this.down.add(member))
+                {
+                    log.warning("Sametime login " + member + " is down, its recipients move to the other logins.");
+                }
+                handOver(member);
+            }
+        }
+        catch (final RuntimeException e)
+        {
+            log.log(Level.WARNING, "Sametime login health check failed.", e);
+        }
+    }
+
+    private void handOver(final SametimeConnectionSupervisor dead)
+    {
+        final List<IMDelivery> buffered = dead.takeBuffered();
+        if (buffered.isEmpty())
+        {
+            return;
+        }
+        int moved = 0;
+        for (final IMDelivery delivery : buffered)
+        {
+            final SametimeConnectionSupervisor member = memberFor(delivery.getNotification());
+            if (member != dead && member.isLoggedIn())
+            {
+                moved++;
+            }
+            member.send(delivery);
+        }
+        if (moved > 0)
+        {
+            log.info("Moved " + moved + " buffered message(s) from Sametime login " + dead + " to other logins.");
+        }
+    }
+}
@@ -0,0 +1,683 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import hudson.plugins.sametime.im.IMCommandEngine;
+import hudson.plugins.sametime.im.IMConnection;
+import hudson.plugins.sametime.im.IMDelivery;
+import hudson.plugins.sametime.im.IMDeliveryListener;
+import hudson.plugins.sametime.im.IMException;
+import hudson.plugins.sametime.im.IMNotification;
+import hudson.plugins.sametime.im.IMPresence;
+import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the plugin logged in to Sametime. When the login is lost or fails, a new SametimeIMConnection is
+ * created after an exponentially growing, jittered delay. Messages sent while there is no login are buffered
+ * and flushed in order once the next login succeeds; messages whose Im died with the old login are buffered
+ * again, ahead of the others and in the order they were first sent. All connection changes happen on the
+ * supervisor's own thread; flushing happens on another one, so that it never holds up the heartbeat.
+ * Buffered deliveries are marked as such, and those withdrawn by their sender are dropped instead of sent.
+ */
+class SametimeConnectionSupervisor implements IMConnection, SametimeConnectionListener
+{
+    /** The delay before the first reconnect attempt, in milliseconds */
+    static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(2);
+    /** The longest delay between two reconnect attempts, in milliseconds */
+    static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+    /** How long a login may take before the attempt counts as failed, in milliseconds */
+    static final long LOGIN_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    /** The maximum number of messages held while logged out, the oldest are dropped beyond it */
+    static final int BUFFER_CAPACITY = 1000;
+    /** How often a logged in session is checked for being alive, in milliseconds */
+    static final long HEARTBEAT_INTERVAL = TimeUnit.SECONDS.toMillis(60);
+    /** How long the server may take to answer a heartbeat before the login counts as lost, in milliseconds */
+    static final long HEARTBEAT_TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+
+    private static final Logger log = Logger.getLogger(SametimeConnectionSupervisor.class.getName());
+
+    private final SametimePublisherDescriptor descriptor;
+    private final SametimeAccount account;
+    private final SametimeServerSelector servers;
+    private final SametimeResolutionCache resolutionCache;
+    private final SametimePresence recipientPresence;
+    private final IMCommandEngine commands;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ThreadPoolExecutor flusher;
+    private final Random random = new Random();
+    private final LinkedList<IMDelivery> buffer = new LinkedList<IMDelivery>();
+    /** messages lost with a login, by the order they were first forwarded in; they go before the buffer */
+    private final TreeMap<Long, IMDelivery> retries = new TreeMap<Long, IMDelivery>();
+    private long forwarded;
+    private SametimeIMConnection connection;
+    private boolean loggedIn;
+    private boolean flushing;
+    private boolean closed;
+    private int failedAttempts;
+    private String server;
+    private String failedServer;
+    private IMPresence presence = IMPresence.UNAVAILABLE;
+    private ScheduledFuture<?> loginCheck;
+    private ScheduledFuture<?> heartbeat;
+    private volatile List<String> places = Collections.emptyList();
+
+    /**
+     * Constructor.
+     * @param desc The configuration
+     * @param account The login to keep up
+     * @param servers Chooses the server to log in to
+     * @param resolutionCache Where to remember resolved user names
+     * @param recipientPresence Where to keep the online status of recipients
+     * @param commands Answers the commands users send to the bot
+     */
+    SametimeConnectionSupervisor(final SametimePublisherDescriptor desc, final SametimeAccount account,
+            final SametimeServerSelector servers, final SametimeResolutionCache resolutionCache,
+            final SametimePresence recipientPresence, final IMCommandEngine commands)
+    {
+        Assert.isNotNull(desc, "Parameter 'desc' must not be null.");
+        Assert.isNotNull(account, "Parameter 'account' must not be null.");
+        this.descriptor = desc;
+        this.account = account;
+        this.servers = servers;
+        this.resolutionCache = resolutionCache;
+        this.recipientPresence = recipientPresence;
+        this.commands = commands;
+        this.executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Sametime connection supervisor"));
+        this.flusher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("Sametime buffer flusher"));
+        this.flusher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the places this login enters, and stays in, at login. Call before {@link #start()}.
+     * @param places The names of the places
+     */
+    void setPlaces(final List<String> places)
+    {
+        this.places = places;
+    }
+
+    /**
+     * Starts the first login attempt.
+     */
+    void start()
+    {
+        scheduleAttempt(0);
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMConnection#send(hudson.plugins.sametime.im.IMNotification)
+     */
+    public IMDelivery send(final IMNotification notification) throws IMException
+    {
+        final IMDelivery delivery = new IMDelivery(notification);
+        send(delivery);
+        return delivery;
+    }
+
+    /**
+     * Sends a message, or buffers it while logged out, and completes the given delivery with the outcome.
+     * @param delivery The delivery of the message
+     */
+    void send(final IMDelivery delivery)
+    {
+        final SametimeIMConnection current;
+        synchronized (this)
+        {
+            if (this.closed)
+            {
+                delivery.fail("connection closed");
+                return;
+            }
+            if (delivery.isWithdrawn())
+            {
+                delivery.fail("withdrawn by the sender");
+                return;
+            }
+            if (!this.loggedIn || this.flushing)
+            {
+                buffer(delivery);
+                return;
+            }
+            current = this.connection;
+        }
+        forward(current, delivery);
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMConnection#setPresence(hudson.plugins.sametime.im.IMPresence)
+     */
+    public void setPresence(final IMPresence presence) throws IMException
+    {
+        final SametimeIMConnection current;
+        synchronized (this)
+        {
+            this.presence = presence;
+            current = this.loggedIn ? this.connection : null;
+        }
+        if (current != null)
+        {
+            current.setPresence(presence);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMConnection#close()
+     */
+    public void close()
+    {
+        final SametimeIMConnection current;
+        final List<IMDelivery> dropped;
+        synchronized (this)
+        {
+            this.closed = true;
+            this.loggedIn = false;
+            current = this.connection;
+            this.connection = null;
+            dropped = takeBuffered();
+            notifyAll();
+        }
+        this.executor.shutdownNow();
+        this.flusher.shutdownNow();
+        for (final IMDelivery delivery : dropped)
+        {
+            delivery.fail("connection closed");
+        }
+        if (current != null)
+        {
+            current.close();
+        }
+    }
+
+    /**
+     * Waits until logged in.
+     * @param timeout How long to wait at most
+     * @param unit The unit of the timeout
+     * @return <code>true</code> if logged in
+     * @throws InterruptedException
+     */
+    synchronized boolean awaitLogin(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.loggedIn && !this.closed)
+        {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return this.loggedIn;
+    }
+
+    /**
+     * Get the converter of the current login.
+     * @return The converter, or <code>null</code> while there is no session
+     */
+    synchronized SametimeIMMessageTargetConverter getConverter()
+    {
+        return this.connection != null ? this.connection.getConverter() : null;
+    }
+
+    /**
+     * Tells whether messages are sent right away.
+     * @return <code>true</code> if logged in
+     */
+    synchronized boolean isLoggedIn()
+    {
+        return this.loggedIn;
+    }
+
+    /**
+     * Get the round trip time of the last heartbeat.
+     * @return The time in milliseconds, or -1 if there is no login or it has not answered a heartbeat yet
+     */
+    synchronized long getHeartbeatRoundTripMillis()
+    {
+        return this.connection != null && this.loggedIn ? this.connection.getRoundTripMillis() : -1;
+    }
+
+    /**
+     * Removes all messages waiting for the next login, so that another login can send them.
+     * @return The buffered deliveries, oldest first
+     */
+    synchronized List<IMDelivery> takeBuffered()
+    {
+        final List<IMDelivery> taken = new ArrayList<IMDelivery>(this.retries.values());
+        taken.addAll(this.buffer);
+        this.retries.clear();
+        this.buffer.clear();
+        for (final IMDelivery delivery : taken)
+        {
+            delivery.setBuffered(false);
+        }
+        return taken;
+    }
+
+    /**
+     * Get the number of messages waiting for the next login.
+     * @return The number of buffered messages
+     */
+    synchronized int getBufferedCount()
+    {
+        return this.retries.size() + this.buffer.size();
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.transport.SametimeConnectionListener#connected(hudson.plugins.sametime.im.transport.SametimeIMConnection)
+     */
+    public void connected(final SametimeIMConnection conn)
+    {
+        execute(new Runnable() {
+            public void run()
+            {
+                loginSucceeded(conn);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.transport.SametimeConnectionListener#disconnected(hudson.plugins.sametime.im.transport.SametimeIMConnection)
+     */
+    public void disconnected(final SametimeIMConnection conn)
+    {
+        execute(new Runnable() {
+            public void run()
+            {
+                connectionLost(conn, "logged out");
+            }
+        });
+    }
+
+    private void scheduleAttempt(final long delayMillis)
+    {
+        synchronized (this)
+        {
+            if (this.closed)
+            {
+                return;
+            }
+        }
+        try
+        {
+            this.executor.schedule(new Runnable() {
+                public void run()
+                {
+                    attempt();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // closed in the meantime
+        }
+    }
+
+    /**
+     * Creates a new connection. Runs on the supervisor thread.
+     */
+    private void attempt()
+    {
+        synchronized (this)
+        {
+            if (this.closed)
+            {
+                return;
+            }
+        }
+        final SametimeIMConnection next;
+        try
+        {
+            this.server = this.servers.select(this.failedServer);
+            log.info("Logging in to Sametime server " + this.server + " as " + this.account
+                    + (this.failedAttempts > 0 ? ", attempt " + (this.failedAttempts + 1) : ""));
+            next = new SametimeIMConnection(this.descriptor, this.server, this.account, this.places,
+                    this.resolutionCache, this.recipientPresence, this.commands, this);
+        }
+        catch (final RuntimeException e)
+        {
+            log.log(Level.WARNING, "Could not create a Sametime session.", e);
+            this.failedAttempts++;
+            scheduleAttempt(backoff(this.failedAttempts));
+            return;
+        }
+        synchronized (this)
+        {
+            if (!this.closed)
+            {
+                this.connection = next;
+                this.loginCheck = this.executor.schedule(new Runnable() {
+                    public void run()
+                    {
+                        loginTimedOut(next);
+                    }
+                }, LOGIN_TIMEOUT, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        next.close();
+    }
+
+    /**
+     * Switches to the new login and flushes the buffer. Runs on the supervisor thread, after
+     * {@link #attempt()} has made the connection the current one.
+     */
+    private void loginSucceeded(final SametimeIMConnection conn)
+    {
+        final IMPresence currentPresence;
+        synchronized (this)
+        {
+            if (conn != this.connection || this.closed)
+            {
+                return;
+            }
+            if (this.loginCheck != null)
+            {
+                this.loginCheck.cancel(false);
+                this.loginCheck = null;
+            }
+            if (this.failedAttempts > 0)
+            {
+                log.info("Logged in to Sametime as " + this.account + " again after " + this.failedAttempts + " failed attempt(s), sending "
+                        + getBufferedCount() + " buffered message(s).");
+            }
+            this.failedAttempts = 0;
+            this.failedServer = null;
+            this.loggedIn = true;
+            this.flushing = true;
+            currentPresence = this.presence;
+            notifyAll();
+            this.heartbeat = this.executor.scheduleWithFixedDelay(new Runnable() {
+                public void run()
+                {
+                    heartbeat(conn);
+                }
+            }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        try
+        {
+            conn.setPresence(currentPresence);
+        }
+        catch (final IMException e)
+        {
+            log.log(Level.WARNING, "Could not set the presence.", e);
+        }
+        try
+        {
+            this.flusher.execute(new Runnable() {
+                public void run()
+                {
+                    flush(conn);
+                }
+            });
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // closed in the meantime, close() has failed what was buffered
+        }
+    }
+
+    /**
+     * Sends the buffered messages one by one, in order. New messages are buffered behind them until it is done.
+     * Runs on the flusher thread.
+     */
+    private void flush(final SametimeIMConnection conn)
+    {
+        while (true)
+        {
+            final IMDelivery next;
+            synchronized (this)
+            {
+                if (conn != this.connection || !this.loggedIn)
+                {
+                    return;
+                }
+                next = !this.retries.isEmpty() ? this.retries.pollFirstEntry().getValue() : this.buffer.poll();
+                if (next == null)
+                {
+                    this.flushing = false;
+                    return;
+                }
+                next.setBuffered(false);
+            }
+            if (next.isWithdrawn())
+            {
+                next.fail("withdrawn by the sender");
+                continue;
+            }
+            forward(conn, next);
+        }
+    }
+
+    /**
+     * Pings the server and checks for the answer a little later. A session can die behind a firewall
+     * without the toolkit noticing, so a missing answer forces a new login. Runs on the supervisor thread.
+     */
+    private void heartbeat(final SametimeIMConnection conn)
+    {
+        synchronized (this)
+        {
+            if (conn != this.connection || !this.loggedIn)
+            {
+                return;
+            }
+        }
+        try
+        {
+            conn.ping();
+            this.executor.schedule(new Runnable() {
+                public void run()
+                {
+                    checkHeartbeat(conn);
+                }
+            }, HEARTBEAT_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // closed in the meantime
+        }
+        catch (final RuntimeException e)
+        {
+            // an exception would end the periodic heartbeat
+            log.log(Level.WARNING, "Could not send a heartbeat.", e);
+        }
+    }
+
+    private void checkHeartbeat(final SametimeIMConnection conn)
+    {
+        synchronized (this)
+        {
+            if (conn != this.connection || !this.loggedIn)
+            {
+                return;
+            }
+        }
+        if (conn.isPingAnswered())
+        {
+            log.fine("Heartbeat of " + this.account + " on " + this.server + " answered in " + conn.getRoundTripMillis() + "ms.");
+            return;
+        }
+        connectionLost(conn, "no heartbeat answer within " + TimeUnit.MILLISECONDS.toSeconds(HEARTBEAT_TIMEOUT) + "s");
+    }
+
+    private void loginTimedOut(final SametimeIMConnection conn)
+    {
+        synchronized (this)
+        {
+            if (conn != this.connection || this.loggedIn)
+            {
+                return;
+            }
+        }
+        connectionLost(conn, "no login within " + TimeUnit.MILLISECONDS.toSeconds(LOGIN_TIMEOUT) + "s");
+    }
+
+    /**
+     * Drops a dead connection and schedules the next attempt. Runs on the supervisor thread.
+     */
+    private void connectionLost(final SametimeIMConnection conn, final String reason)
+    {
+        final long delay;
+        synchronized (this)
+        {
+            if (conn != this.connection || this.closed)
+            {
+                return;
+            }
+            this.connection = null;
+            this.loggedIn = false;
+            this.flushing = false;
+            if (this.loginCheck != null)
+            {
+                this.loginCheck.cancel(false);
+                this.loginCheck = null;
+            }
+            if (this.heartbeat != null)
+            {
+                this.heartbeat.cancel(false);
+                this.heartbeat = null;
+            }
+            this.failedAttempts++;
+            this.failedServer = this.server;
+            delay = backoff(this.failedAttempts);
+            log.warning("Lost the Sametime login of " + this.account + " on " + this.server + " (" + reason + "), trying again in " + delay + "ms. "
+                    + getBufferedCount() + " message(s) buffered.");
+        }
+        conn.close();
+        scheduleAttempt(delay);
+    }
+
+    /**
+     * Doubles the delay with each failed attempt, up to {@link #MAX_BACKOFF}, and picks a random
+     * value in its upper half so that several Jenkins instances don't hammer a restarted server in step.
+     */
+    private long backoff(final int attempts)
+    {
+        final long base = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(attempts - 1, 20));
+        return base / 2 + (long) (this.random.nextDouble() * (base / 2));
+    }
+
+    /**
+     * Hands a message to a connection and completes the caller's delivery with its outcome.
+     * If the message is lost because the login went away, it is buffered again.
+     */
+    private void forward(final SametimeIMConnection conn, final IMDelivery outer)
+    {
+        final long seq;
+        synchronized (this)
+        {
+            seq = this.forwarded++;
+        }
+        final IMDelivery inner;
+        try
+        {
+            inner = conn.send(outer.getNotification());
+        }
+        catch (final IMException e)
+        {
+            retryOrFail(conn, outer, seq, e.toString());
+            return;
+        }
+        inner.addListener(new IMDeliveryListener() {
+            public void deliveryCompleted(final IMDelivery completed)
+            {
+                if (completed.isDelivered() || completed.isDeferred())
+                {
+                    outer.completeAs(completed);
+                }
+                else
+                {
+                    retryOrFail(conn, outer, seq, completed.getFailureReason());
+                }
+            }
+        });
+    }
+
+    /**
+     * Buffers a message lost with its login again, unless its sender has withdrawn it, or fails it.
+     * @param seq The order it was forwarded in, to keep retried messages in their original order
+     */
+    private void retryOrFail(final SametimeIMConnection conn, final IMDelivery delivery, final long seq, final String reason)
+    {
+        synchronized (this)
+        {
+            if (!conn.isLoggedIn() && !this.closed && !delivery.isWithdrawn())
+            {
+                delivery.setBuffered(true);
+                this.retries.put(seq, delivery);
+                dropOldestIfFull();
+                return;
+            }
+        }
+        delivery.fail(reason);
+    }
+
+    /**
+     * Adds a message to the buffer. Must hold the lock.
+     */
+    private void buffer(final IMDelivery delivery)
+    {
+        delivery.setBuffered(true);
+        this.buffer.addLast(delivery);
+        dropOldestIfFull();
+    }
+
+    /**
+     * Drops the oldest message if the buffer is full, retried ones being older than the others. Must hold the lock.
+     */
+    private void dropOldestIfFull()
+    {
+        if (getBufferedCount() > BUFFER_CAPACITY)
+        {
+            final IMDelivery dropped = !this.retries.isEmpty() ? this.retries.pollFirstEntry().getValue() : this.buffer.removeFirst();
+            dropped.setBuffered(false);
+            log.warning("Sametime reconnect buffer is full, dropping the message to " + dropped.getNotification().getTarget());
+            // completes on the supervisor thread, not while holding the lock
+            execute(new Runnable() {
+                public void run()
+                {
+                    dropped.fail("reconnect buffer full");
+                }
+            });
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return this.account.toString();
+    }
+
+    private void execute(final Runnable task)
+    {
+        try
+        {
+            this.executor.execute(task);
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // closed, close() has failed what was buffered
+        }
+    }
+}
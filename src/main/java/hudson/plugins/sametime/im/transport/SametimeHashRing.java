@@ -0,0 +1,100 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import hudson.plugins.sametime.tools.Assert;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The consistent hash ring of the SametimeConnectionPool. Every member gets {@link #VIRTUAL_NODES} points
+ * on the ring, and a key belongs to the member of the first point at or after the key's hash, so adding or
+ * removing a member only moves the keys of that member. Keys are compared trimmed and in lower case.
+ * Not thread-safe, the ring is filled once and only read afterwards.
+ * @param <T> the type of the members
+ */
+class SametimeHashRing<T>
+{
+    /** The number of points each member gets on the ring */
+    static final int VIRTUAL_NODES = 64;
+
+    private final SortedMap<Integer, T> points = new TreeMap<Integer, T>();
+    private final Set<T> members = new LinkedHashSet<T>();
+
+    /**
+     * Puts a member on the ring.
+     * @param name The name the member's points are hashed from, the same across restarts
+     * @param member The member
+     */
+    void add(final String name, final T member)
+    {
+        Assert.isNotNull(name, "Parameter 'name' must not be null.");
+        Assert.isNotNull(member, "Parameter 'member' must not be null.");
+        this.members.add(member);
+        for (int i = 0; i < VIRTUAL_NODES; i++)
+        {
+            this.points.put(hash(name + "#" + i), member);
+        }
+    }
+
+    /**
+     * The member a key belongs to while all members are up.
+     * @param key The key, e.g. a recipient
+     * @return The member, or null if the ring is empty
+     */
+    T ownerOf(final String key)
+    {
+        final List<T> walk = walk(key);
+        return walk.isEmpty() ? null : walk.get(0);
+    }
+
+    /**
+     * The members in the order they take over a key: its owner first, then the next ones on the ring.
+     * @param key The key, e.g. a recipient
+     * @return Every member once
+     */
+    List<T> walk(final String key)
+    {
+        final int hash = hash(key.trim().toLowerCase());
+        final Set<T> order = new LinkedHashSet<T>();
+        for (final T member : this.points.tailMap(hash).values())
+        {
+            if (order.add(member) && order.size() == this.members.size())
+            {
+                return new ArrayList<T>(order);
+            }
+        }
+        order.addAll(this.points.headMap(hash).values());
+        return new ArrayList<T>(order);
+    }
+
+    /**
+     * Hashes a key onto the ring. MD5 spreads similar names evenly and is the same on every JVM,
+     * so keys keep their member across restarts.
+     */
+    static int hash(final String key)
+    {
+        try
+        {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            return (digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16 | (digest[2] & 0xFF) << 8 | (digest[3] & 0xFF);
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            return key.hashCode();
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            return key.hashCode();
+        }
+    }
+}
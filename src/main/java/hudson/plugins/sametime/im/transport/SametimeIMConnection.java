@@ -3,26 +3,53 @@
  */
 package hudson.plugins.sametime.im.transport;
 
+import hudson.plugins.sametime.im.AnnouncementIMMessageTarget;
+import hudson.plugins.sametime.im.DefaultIMMessageTarget;
+import hudson.plugins.sametime.im.GroupChatIMMessageTarget;
+import hudson.plugins.sametime.im.IMCommandEngine;
 import hudson.plugins.sametime.im.IMConnection;
+import hudson.plugins.sametime.im.IMDelivery;
+import hudson.plugins.sametime.im.IMDeliveryListener;
 import hudson.plugins.sametime.im.IMException;
 import hudson.plugins.sametime.im.IMMessageTarget;
+import hudson.plugins.sametime.im.IMNotification;
 import hudson.plugins.sametime.im.IMPresence;
-import hudson.plugins.sametime.im.transport.bot.SametimeNotificationBot;
+import hudson.plugins.sametime.im.transport.bot.SametimeDefaultBot;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.lotus.sametime.announcement.AnnouncementService;
+import com.lotus.sametime.awareness.AwarenessService;
+import com.lotus.sametime.awareness.StatusAdapter;
+import com.lotus.sametime.awareness.StatusEvent;
+import com.lotus.sametime.awareness.WatchList;
 import com.lotus.sametime.community.CommunityService;
 import com.lotus.sametime.community.Login;
 import com.lotus.sametime.community.LoginEvent;
 import com.lotus.sametime.community.LoginListener;
 import com.lotus.sametime.core.comparch.DuplicateObjectException;
 import com.lotus.sametime.core.comparch.STSession;
-import com.lotus.sametime.core.constants.EncLevel;
 import com.lotus.sametime.core.constants.ImTypes;
 import com.lotus.sametime.core.types.STPrivacyList;
-import com.lotus.sametime.im.Im;
+import com.lotus.sametime.core.types.STUser;
+import com.lotus.sametime.core.util.connection.Connection;
+import com.lotus.sametime.core.util.connection.SocketConnection;
+import com.lotus.sametime.im.ImEvent;
+import com.lotus.sametime.im.ImServiceListener;
 import com.lotus.sametime.im.InstantMessagingService;
+import com.lotus.sametime.lookup.LookupService;
+import com.lotus.sametime.lookup.ResolveEvent;
+import com.lotus.sametime.lookup.ResolveListener;
+import com.lotus.sametime.lookup.Resolver;
+import com.lotus.sametime.places.PlacesService;
 
 /**
  * ST Toolkit-specific implementation of IMConnection.
@@ -34,27 +61,67 @@ class SametimeIMConnection implements IMConnection, LoginListener
     private CommunityService commService;
     private Login login;
     private InstantMessagingService imService;
+    private volatile SametimeImSessionPool sessionPool;
+    private volatile SametimePlaces places;
+    private volatile AnnouncementService announcements;
+    private final List<String> initialPlaces;
+    private final int imSessionIdleTimeout;
+    private final SametimeResolutionCache resolutionCache;
+    private final SametimePresence presence;
+    private final IMCommandEngine commands;
+    private WatchList watchList;
+    private final Set<String> watched = new HashSet<String>();
+    private SametimeIMMessageTargetConverter converter;
+    private final SametimeConnectionListener listener;
+    private boolean unloaded;
+    private final String nickname;
+    private Resolver heartbeatResolver;
+    private volatile long pingSentAt;
+    private volatile boolean pingAnswered = true;
+    private volatile long roundTripMillis = -1;
+    private static final AtomicInteger sessionCount = new AtomicInteger();
     private static final Logger log = Logger.getLogger(SametimeIMConnection.class.getName());
 
     /**
      * Constructor.
      * @param desc The configuration
+     * @param server The community server to log in to
+     * @param account The login to use
+     * @param initialPlaces The places to enter at login
+     * @param resolutionCache Where to remember resolved user names
+     * @param presence Where to keep the online status of recipients
+     * @param commands Answers the commands users send to the bot
+     * @param listener Told about login and logout
      */
-    public SametimeIMConnection(SametimePublisherDescriptor desc)
+    public SametimeIMConnection(SametimePublisherDescriptor desc, String server, SametimeAccount account,
+            List<String> initialPlaces, SametimeResolutionCache resolutionCache, SametimePresence presence,
+            IMCommandEngine commands, SametimeConnectionListener listener)
     {
+        this.initialPlaces = initialPlaces;
+        imSessionIdleTimeout = desc.getImSessionIdleTimeout();
+        this.resolutionCache = resolutionCache;
+        this.presence = presence;
+        this.commands = commands;
+        this.listener = listener;
+        this.nickname = account.getNickname();
         try
         {
             log.info("Creating ST Session.");
-            session = new STSession("HudsonNotifierSession");
+            // session names must be unique, the session of a lost login may not be unloaded yet
+            session = new STSession("HudsonNotifierSession-" + sessionCount.incrementAndGet());
             log.info("Loading ST Components.");
             session.loadSemanticComponents();
             log.info("Starting ST Session.");
             session.start();
+            converter = new SametimeIMMessageTargetConverter(session, resolutionCache);
 
             commService = (CommunityService) session.getCompApi(CommunityService.COMP_NAME);
             commService.addLoginListener(this);
-            log.info("Attempting login.");
-            commService.loginByPassword(desc.getHostname(), desc.getHudsonNickname(), desc.getHudsonPassword());
+            // the same port the server selector probes, rather than the toolkit's default
+            commService.setConnectivity(new Connection[] {
+                    new SocketConnection(desc.getPort(), SametimeServerSelector.PROBE_TIMEOUT) });
+            log.info("Attempting login on port " + desc.getPort() + ".");
+            commService.loginByPassword(server, account.getNickname(), account.getPassword());
         }
         catch (DuplicateObjectException e)
         {
@@ -62,28 +129,208 @@ class SametimeIMConnection implements IMConnection, LoginListener
         }
     }
 
+    /**
+     * Tells whether messages can be sent over this connection.
+     * @return <code>true</code> if logged in
+     */
+    public boolean isLoggedIn()
+    {
+        return sessionPool != null;
+    }
+
     /* (non-Javadoc)
      * @see hudson.plugins.sametime.im.IMConnection#close()
      */
     public void close()
     {
-        commService.logout();
-        session.stop();
-        session.unloadSession();
+        shutdownSessionPool();
+        if (commService != null && commService.isLoggedIn())
+        {
+            commService.logout();
+        }
+        unloadSession();
     }
 
     /* (non-Javadoc)
-     * @see hudson.plugins.sametime.im.IMConnection#send(hudson.plugins.sametime.im.IMMessageTarget, java.lang.String)
+     * @see hudson.plugins.sametime.im.IMConnection#send(hudson.plugins.sametime.im.IMNotification)
+     */
+    public IMDelivery send(IMNotification notification) throws IMException
+    {
+        final SametimeImSessionPool pool = sessionPool;
+        if (pool == null)
+        {
+            throw new IMException(new IllegalStateException("Not logged in to Sametime."));
+        }
+
+        if (notification.getTarget() instanceof GroupChatIMMessageTarget)
+        {
+            final SametimePlaces rooms = places;
+            if (rooms == null)
+            {
+                throw new IMException(new IllegalStateException("Not logged in to Sametime."));
+            }
+            // one message for everyone in the place
+            final IMDelivery delivery = new IMDelivery(notification);
+            rooms.send(notification.getTarget().toString(), delivery);
+            return delivery;
+        }
+
+        if (notification.getTarget() instanceof AnnouncementIMMessageTarget)
+        {
+            return announce(notification, (AnnouncementIMMessageTarget) notification.getTarget());
+        }
+
+        SametimeIMMessageTarget stTarget = resolve(notification.getTarget());
+        if (stTarget == null)
+        {
+            return IMDelivery.failed(notification, "could not resolve " + notification.getTarget());
+        }
+        final IMDelivery delivery = new IMDelivery(notification);
+        final STUser user = stTarget.getUser();
+        if (commands.isMuted(user.getId().getId()))
+        {
+            return IMDelivery.failed(notification, user.getName() + " has muted the bot");
+        }
+        watch(user);
+        if (!presence.isReachable(user))
+        {
+            // opening an Im would fail, keep it until the user is back
+            presence.defer(user, delivery);
+            return delivery;
+        }
+        final IMDelivery attempt = new IMDelivery(notification);
+        attempt.addListener(new IMDeliveryListener() {
+            public void deliveryCompleted(IMDelivery completed)
+            {
+                // the user may be offline and just not reported yet, the watch list will tell
+                if (!completed.isDelivered() && sessionPool != null && !presence.isKnownReachable(user))
+                {
+                    presence.defer(user, delivery);
+                }
+                else
+                {
+                    delivery.completeAs(completed);
+                }
+            }
+        });
+        pool.send(user, attempt);
+        return delivery;
+    }
+
+    /**
+     * Sends one announcement to all recipients that can be reached, in one server operation.
+     * The announcement is not acknowledged, so it counts as delivered once it is handed to the toolkit.
+     * Recipients who are away get the notification kept for them on its own, like any other.
+     * @param notification The notification
+     * @param target Its recipients
+     * @return The delivery, already completed
+     * @throws IMException
      */
-    public void send(IMMessageTarget target, String text) throws IMException
+    private IMDelivery announce(IMNotification notification, AnnouncementIMMessageTarget target) throws IMException
     {
-        SametimeIMMessageTarget stTarget = (SametimeIMMessageTarget)target;
+        final AnnouncementService service = announcements;
+        if (service == null || converter == null)
+        {
+            throw new IMException(new IllegalStateException("Not logged in to Sametime."));
+        }
+        // looked up by the dispatcher before sending
+        final Map<String, SametimeIMMessageTarget> resolved = converter.fromCache(target.getRecipients());
+        final IMDelivery delivery = new IMDelivery(notification);
+        final List<STUser> reachable = new ArrayList<STUser>();
+        int away = 0;
+        for (String name : target.getRecipients())
+        {
+            final SametimeIMMessageTarget stTarget = resolved.get(name);
+            if (stTarget == null)
+            {
+                log.warning("Could not resolve " + name + ", leaving it out of the announcement.");
+                continue;
+            }
+            final STUser user = stTarget.getUser();
+            if (commands.isMuted(user.getId().getId()))
+            {
+                continue;
+            }
+            watch(user);
+            if (presence.isReachable(user))
+            {
+                reachable.add(user);
+            }
+            else
+            {
+                final IMDelivery kept = new IMDelivery(new IMNotification(new DefaultIMMessageTarget(name),
+                        notification.getText(), notification.getSource(), notification.getPriority()));
+                presence.defer(user, kept);
+                // the announcement stays in the outbox while it is kept for anyone
+                delivery.hold();
+                kept.whenReleased(new Runnable() {
+                    public void run()
+                    {
+                        delivery.release();
+                    }
+                });
+                away++;
+            }
+        }
+        if (reachable.isEmpty())
+        {
+            if (away > 0)
+            {
+                delivery.defer("all " + away + " recipients are away");
+            }
+            else
+            {
+                delivery.fail("could not resolve any of " + target.getRecipients().size() + " recipients");
+            }
+            return delivery;
+        }
+        log.info("Announcing to " + reachable.size() + " recipient(s)" + (away > 0 ? ", " + away + " away." : "."));
+        try
+        {
+            service.sendAnnouncement(reachable.toArray(new STUser[reachable.size()]), false, notification.getText());
+        }
+        catch (RuntimeException e)
+        {
+            log.log(Level.WARNING, "Could not send the announcement.", e);
+            delivery.fail(e.toString());
+            return delivery;
+        }
+        delivery.succeed();
+        return delivery;
+    }
 
-        log.info("Opening IM session with target: "+ stTarget.getUser().getName());
-        Im im = imService.createIm(stTarget.getUser(), EncLevel.ENC_LEVEL_ALL, ImTypes.IM_TYPE_CHAT);
-        im.addImListener(new SametimeNotificationBot(text));
+    /**
+     * Adds a user to the watch list, once, so that the presence knows whether the user can be sent to.
+     * @param user The user
+     */
+    private synchronized void watch(STUser user)
+    {
+        if (watchList != null && user != null && watched.add(user.getId().getId()))
+        {
+            watchList.addItem(user);
+        }
+    }
 
-        im.open();
+    /**
+     * Finds the Sametime user for a target in the resolution cache, without waiting for the server;
+     * the dispatcher looks up the users of a job before sending it.
+     * Targets resolved long ago, e.g. loaded from an old job configuration, are looked up by name again
+     * so that directory changes are picked up, and only used as they are if that fails.
+     * @param target The target, resolved or not
+     * @return The resolved target, or <code>null</code> if it is not known to resolve
+     */
+    private SametimeIMMessageTarget resolve(IMMessageTarget target)
+    {
+        SametimeIMMessageTarget resolved = null;
+        if (converter != null)
+        {
+            resolved = converter.fromCache(Collections.singleton(target.toString())).get(target.toString());
+        }
+        if (resolved == null && target instanceof SametimeIMMessageTarget)
+        {
+            resolved = (SametimeIMMessageTarget) target;
+        }
+        return resolved;
     }
 
     /* (non-Javadoc)
@@ -107,6 +354,78 @@ class SametimeIMConnection implements IMConnection, LoginListener
         }
     }
 
+    /**
+     * Checks that the server still answers, by looking up our own name. The lookup bypasses the
+     * resolution cache; {@link #isPingAnswered()} tells whether the answer has arrived.
+     */
+    synchronized void ping()
+    {
+        if (unloaded || session == null)
+        {
+            return;
+        }
+        if (heartbeatResolver == null)
+        {
+            final LookupService lookupService = (LookupService) session.getCompApi(LookupService.COMP_NAME);
+            heartbeatResolver = lookupService.createResolver(true, false, true, false);
+            heartbeatResolver.addResolveListener(new ResolveListener() {
+                // any answer will do, the server is alive
+                public void resolved(final ResolveEvent event)
+                {
+                    pong();
+                }
+
+                public void resolveFailed(final ResolveEvent event)
+                {
+                    pong();
+                }
+
+                public void resolveConflict(final ResolveEvent event)
+                {
+                    pong();
+                }
+            });
+        }
+        pingAnswered = false;
+        pingSentAt = System.currentTimeMillis();
+        heartbeatResolver.resolve(nickname);
+    }
+
+    /**
+     * @return <code>true</code> if the last {@link #ping()} has been answered, or there was none
+     */
+    boolean isPingAnswered()
+    {
+        return pingAnswered;
+    }
+
+    /**
+     * @return the round trip time of the last answered ping in milliseconds, or -1 if none was answered yet
+     */
+    long getRoundTripMillis()
+    {
+        return roundTripMillis;
+    }
+
+    private void pong()
+    {
+        if (!pingAnswered)
+        {
+            roundTripMillis = System.currentTimeMillis() - pingSentAt;
+            pingAnswered = true;
+        }
+    }
+
+    /**
+     * Get the converter that resolves user names over this connection's session.
+     * Names that have been resolved before are answered from the cache even before login has finished.
+     * @return The converter, or <code>null</code> if the session could not be created
+     */
+    public SametimeIMMessageTargetConverter getConverter()
+    {
+        return converter;
+    }
+
     /**
      * Get the session we are currently using
      * @return The session
@@ -127,6 +446,52 @@ class SametimeIMConnection implements IMConnection, LoginListener
         log.info("Registering for IM Service.");
         imService = (InstantMessagingService) session.getCompApi(InstantMessagingService.COMP_NAME);
         imService.registerImType(ImTypes.IM_TYPE_CHAT);
+        // users may start a conversation to send commands
+        imService.addImServiceListener(new ImServiceListener() {
+            public void imReceived(ImEvent event)
+            {
+                event.getIm().addImListener(new SametimeDefaultBot(commands));
+            }
+        });
+        sessionPool = new SametimeImSessionPool(imService, imSessionIdleTimeout, commands);
+        places = new SametimePlaces((PlacesService) session.getCompApi(PlacesService.COMP_NAME), initialPlaces);
+        announcements = (AnnouncementService) session.getCompApi(AnnouncementService.COMP_NAME);
+        startWatching();
+
+        // users remembered from the last run were used as they were, check them now that we can
+        if (converter != null)
+        {
+            converter.revalidate(resolutionCache.takeUnverifiedNames());
+        }
+        listener.connected(this);
+    }
+
+    /**
+     * Creates the watch list, with everyone the bot has sent to before and everyone notifications are kept for.
+     */
+    private void startWatching()
+    {
+        final AwarenessService awareness = (AwarenessService) session.getCompApi(AwarenessService.COMP_NAME);
+        final WatchList list = awareness.createWatchList();
+        list.addStatusListener(new StatusAdapter() {
+            @Override
+            public void userStatusChanged(StatusEvent event)
+            {
+                presence.statusChanged(event.getWatchedUsers());
+            }
+        });
+        synchronized (this)
+        {
+            watchList = list;
+        }
+        for (SametimeIMMessageTarget target : resolutionCache.getResolved().values())
+        {
+            watch(target.getUser());
+        }
+        for (STUser user : presence.getDeferredUsers())
+        {
+            watch(user);
+        }
     }
 
     /* (non-Javadoc)
@@ -134,8 +499,55 @@ class SametimeIMConnection implements IMConnection, LoginListener
      */
     public void loggedOut(LoginEvent le)
     {
+        // also called if the login failed
+        log.info("Logged out, reason 0x" + Integer.toHexString(le.getReason()) + ".");
+        shutdownSessionPool();
+        unloadSession();
+        listener.disconnected(this);
+    }
+
+    /**
+     * Stops the session, once.
+     */
+    private synchronized void unloadSession()
+    {
+        if (unloaded || session == null)
+        {
+            return;
+        }
+        unloaded = true;
         session.stop();
         session.unloadSession();
     }
 
+    /**
+     * Closes all pooled Ims, leaves the places and stops watching.
+     */
+    private void shutdownSessionPool()
+    {
+        final WatchList list;
+        synchronized (this)
+        {
+            list = watchList;
+            watchList = null;
+            watched.clear();
+        }
+        if (list != null)
+        {
+            list.close();
+        }
+        announcements = null;
+        final SametimePlaces rooms = places;
+        places = null;
+        if (rooms != null)
+        {
+            rooms.shutdown();
+        }
+        final SametimeImSessionPool pool = sessionPool;
+        sessionPool = null;
+        if (pool != null)
+        {
+            pool.shutdown();
+        }
+    }
 }
@@ -3,10 +3,44 @@
  */
 package hudson.plugins.sametime.im.transport;
 
+import hudson.model.Hudson;
+import hudson.plugins.sametime.im.AnnouncementIMMessageTarget;
+import hudson.plugins.sametime.im.GroupChatIMMessageTarget;
+import hudson.plugins.sametime.im.IMBuildIndex;
+import hudson.plugins.sametime.im.IMCommandEngine;
 import hudson.plugins.sametime.im.IMConnection;
+import hudson.plugins.sametime.im.IMConnectionProvider;
 import hudson.plugins.sametime.im.IMException;
+import hudson.plugins.sametime.im.IMMessageTarget;
+import hudson.plugins.sametime.im.IMMessageTargetConversionException;
+import hudson.plugins.sametime.im.IMNotification;
+import hudson.plugins.sametime.im.IMNotificationDispatcher;
+import hudson.plugins.sametime.im.IMCircuitBreaker;
+import hudson.plugins.sametime.im.IMOutbox;
+import hudson.plugins.sametime.im.IMRateLimiter;
 import hudson.plugins.sametime.im.IMPresence;
 import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A factory for the connection to thne Sametime service.
@@ -14,9 +48,19 @@ import hudson.plugins.sametime.tools.Assert;
  * @since 18 Jan 2008
  * @version 1.0
  */
-final class SametimeIMConnectionProvider
+final class SametimeIMConnectionProvider implements IMConnectionProvider
 {
+    /** The maximum number of user names whose resolution is remembered */
+    static final int RESOLUTION_CACHE_SIZE = 2000;
+    /** The file in JENKINS_HOME the resolved user names are kept in */
+    static final String RESOLUTION_STORE_FILE = "hudson.plugins.sametime.resolutions.bin";
+    /** The directory in JENKINS_HOME unsent notifications are journaled in */
+    static final String OUTBOX_DIRECTORY = "sametime-outbox";
+    /** How long the pre-resolver waits for the login, in seconds */
+    static final long PRE_RESOLVE_TIMEOUT = 120;
+
     private static final SametimeIMConnectionProvider INSTANCE = new SametimeIMConnectionProvider();
+    private static final Logger log = Logger.getLogger(SametimeIMConnectionProvider.class.getName());
 
     /**
      * Returns the singleton instance of this factory.
@@ -29,42 +73,224 @@ final class SametimeIMConnectionProvider
 
     private IMConnection imConnection;
     private SametimePublisherDescriptor descriptor;
+    private IMNotificationDispatcher dispatcher;
+    private final SametimeResolutionCache resolutionCache = new SametimeResolutionCache(RESOLUTION_CACHE_SIZE,
+            SametimePublisherDescriptor.DEFAULT_RESOLUTION_TTL, SametimePublisherDescriptor.DEFAULT_NEGATIVE_RESOLUTION_TTL);
+    private SametimeResolutionStore resolutionStore;
+    private IMOutbox outbox;
+    private final IMRateLimiter rateLimiter = new IMRateLimiter("Sametime rate limiter");
+    private final IMCircuitBreaker circuitBreaker = new IMCircuitBreaker("Sametime sender");
+    private final IMCommandEngine commands = new IMCommandEngine("Sametime bot commands", IMBuildIndex.getInstance());
+    private final SametimePresence presence = new SametimePresence(new SametimePresence.Sink() {
+        public boolean take(final IMNotification digest)
+        {
+            final IMNotificationDispatcher current;
+            synchronized (SametimeIMConnectionProvider.this)
+            {
+                current = dispatcher;
+            }
+            if (current == null)
+            {
+                log.warning("No dispatcher to send " + digest);
+                return false;
+            }
+            return current.dispatch(Collections.singletonList(digest));
+        }
+    });
+    private final ExecutorService preResolver;
+    private final ExecutorService connector;
+    private Future<IMConnection> pendingConnection;
+    /** set once Jenkins shuts down, nothing is connected or started again after that */
+    private boolean stopped;
+    /** false while no server is configured, there is nothing to reconnect to until the configuration changes */
+    private boolean configured;
 
     /**
      * Constructor.  Private to try for singleton status
      */
     private SametimeIMConnectionProvider()
     {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Sametime target pre-resolver"));
+        executor.allowCoreThreadTimeOut(true);
+        this.preResolver = executor;
+
+        final ThreadPoolExecutor connectorExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Sametime connector"));
+        connectorExecutor.allowCoreThreadTimeOut(true);
+        this.connector = connectorExecutor;
     }
 
     /**
-     * Create a connection to Sametime
+     * Starts connecting to Sametime in the background, replacing the current connection.
      * @param desc The configuration for the Sametime service
-     * @return The connection
-     * @throws IMException
      */
-    synchronized IMConnection createConnection(final SametimePublisherDescriptor desc) throws IMException
+    synchronized void connect(final SametimePublisherDescriptor desc)
     {
         Assert.isNotNull(desc, "Parameter 'desc' must not be null.");
         this.descriptor = desc;
+        if (this.stopped)
+        {
+            log.info("Shutting down, not connecting to Sametime.");
+            return;
+        }
+        this.configured = desc.getHostname() != null;
+
+        final List<IMOutbox.Entry> unsent = startOutbox();
+        updateDispatcher(desc);
+        if (!unsent.isEmpty())
+        {
+            this.dispatcher.replay(unsent);
+        }
+        this.resolutionCache.setTtls(desc.getResolutionTtl(), desc.getNegativeResolutionTtl());
+        this.rateLimiter.setLimits(desc.getRateLimit(), desc.getRecipientRateLimit());
+        this.commands.setPrefix(desc.getCommandPrefix());
+        this.pendingConnection = this.connector.submit(new Callable<IMConnection>() {
+            public IMConnection call() throws IMException
+            {
+                return createConnection(desc);
+            }
+        });
+    }
 
+    /**
+     * Create a connection to Sametime. Only called on the connector thread, so that
+     * neither Jenkins startup nor the callers of {@link #currentConnection()} wait for the server.
+     * @param desc The configuration for the Sametime service
+     * @return The connection
+     * @throws IMException
+     */
+    private IMConnection createConnection(final SametimePublisherDescriptor desc) throws IMException
+    {
         releaseConnection();
+        startResolutionStore();
 
-        if (desc.getHostname() != null)
+        if (desc.getHostname() == null)
         {
-            this.imConnection = new SametimeIMConnection(desc);
-            this.imConnection.setPresence(desc.isExposePresence() ? IMPresence.AVAILABLE : IMPresence.UNAVAILABLE);
+            return null;
         }
-        return this.imConnection;
+        final SametimeConnectionPool connection = new SametimeConnectionPool(desc, desc.getAccounts(), this.resolutionCache,
+                this.presence, this.commands);
+        connection.setPresence(desc.isExposePresence() ? IMPresence.AVAILABLE : IMPresence.UNAVAILABLE);
+        connection.start();
+        synchronized (this)
+        {
+            this.imConnection = connection;
+        }
+        return connection;
     }
 
     /**
-     * Return the current connection, creating one if it doesn't exist.
+     * Return the current connection, starting to connect in the background if it doesn't exist.
+     * Without a configured server, nothing is tried until {@link #connect(SametimePublisherDescriptor)} is called again.
+     * @return The connection, or <code>null</code> while it is being created
      * @throws IMException on any underlying communication Exception
      */
-    synchronized IMConnection currentConnection() throws IMException
+    public synchronized IMConnection currentConnection() throws IMException
+    {
+        if (this.imConnection == null && this.descriptor != null && !this.stopped && this.configured
+                && (this.pendingConnection == null || this.pendingConnection.isDone()))
+        {
+            connect(this.descriptor);
+        }
+        return this.imConnection;
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMConnectionProvider#awaitConnection(long, java.util.concurrent.TimeUnit)
+     */
+    public IMConnection awaitConnection(final long timeout, final TimeUnit unit) throws IMException, InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final Future<IMConnection> pending;
+        synchronized (this)
+        {
+            currentConnection();
+            pending = this.pendingConnection;
+        }
+        if (pending == null)
+        {
+            return null;
+        }
+
+        final IMConnection connection;
+        try
+        {
+            connection = pending.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        catch (final TimeoutException e)
+        {
+            return null;
+        }
+        catch (final CancellationException e)
+        {
+            return null;
+        }
+        catch (final ExecutionException e)
+        {
+            throw new IMException(e);
+        }
+        if (connection instanceof SametimeConnectionPool)
+        {
+            // messages are buffered until the login succeeds, waiting just keeps a starting connection from doing that
+            ((SametimeConnectionPool) connection).awaitLogin(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        return connection;
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMConnectionProvider#resolveTargets(java.util.Collection)
+     */
+    public void resolveTargets(final Collection<IMMessageTarget> targets) throws IMException
     {
-        return this.imConnection != null ? this.imConnection : createConnection(this.descriptor);
+        final Set<String> names = new LinkedHashSet<String>();
+        for (final IMMessageTarget target : targets)
+        {
+            if (target instanceof AnnouncementIMMessageTarget)
+            {
+                names.addAll(((AnnouncementIMMessageTarget) target).getRecipients());
+            }
+            else if (!(target instanceof GroupChatIMMessageTarget))
+            {
+                names.add(target.toString());
+            }
+        }
+        final IMConnection connection;
+        synchronized (this)
+        {
+            connection = this.imConnection;
+        }
+        if (names.isEmpty() || !(connection instanceof SametimeConnectionPool))
+        {
+            return;
+        }
+        final SametimeIMMessageTargetConverter converter = ((SametimeConnectionPool) connection).getConverter();
+        if (converter == null)
+        {
+            return;
+        }
+        try
+        {
+            // one round trip for all of them, names in the cache are not looked up again
+            converter.fromStrings(names);
+        }
+        catch (final IMMessageTargetConversionException e)
+        {
+            throw new IMException(e);
+        }
+    }
+
+    /**
+     * Stops connecting and releases the current connection.
+     */
+    synchronized void disconnect()
+    {
+        if (this.pendingConnection != null)
+        {
+            this.pendingConnection.cancel(false);
+            this.pendingConnection = null;
+        }
+        releaseConnection();
     }
 
     /**
@@ -78,4 +304,248 @@ final class SametimeIMConnectionProvider
             this.imConnection = null;
         }
     }
+
+    /**
+     * Resolves the given target names in the background, so they are in the cache by the time they are needed.
+     * @param targetNames The names to resolve
+     */
+    void preResolve(final Collection<String> targetNames)
+    {
+        if (targetNames.isEmpty())
+        {
+            return;
+        }
+        final Collection<String> names = new ArrayList<String>(targetNames);
+        this.preResolver.execute(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    final IMConnection connection = awaitConnection(PRE_RESOLVE_TIMEOUT, TimeUnit.SECONDS);
+                    if (connection instanceof SametimeConnectionPool)
+                    {
+                        final SametimeIMMessageTargetConverter converter = ((SametimeConnectionPool) connection).getConverter();
+                        if (converter != null)
+                        {
+                            converter.fromStrings(names);
+                        }
+                    }
+                }
+                catch (final Exception e)
+                {
+                    log.log(Level.FINE, "Could not resolve " + names + " in advance.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the resolved user names saved by the last run, once.
+     */
+    private synchronized void startResolutionStore()
+    {
+        if (this.resolutionStore != null || Hudson.getInstance() == null)
+        {
+            return;
+        }
+        this.resolutionStore = new SametimeResolutionStore(new File(Hudson.getInstance().getRootDir(), RESOLUTION_STORE_FILE),
+                this.resolutionCache);
+        this.resolutionStore.start();
+    }
+
+    /**
+     * Opens the journal of unsent notifications, once.
+     * @return The notifications left over from the last run
+     */
+    private List<IMOutbox.Entry> startOutbox()
+    {
+        if (this.outbox != null || Hudson.getInstance() == null)
+        {
+            return Collections.emptyList();
+        }
+        final IMOutbox journal = new IMOutbox(new File(Hudson.getInstance().getRootDir(), OUTBOX_DIRECTORY));
+        try
+        {
+            final List<IMOutbox.Entry> unsent = journal.open();
+            this.outbox = journal;
+            return unsent;
+        }
+        catch (final IOException e)
+        {
+            log.log(Level.WARNING, "Could not open the Sametime outbox, notifications will not survive a restart.", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Closes the journal of unsent notifications. Whatever is not done by now is sent after the next start.
+     */
+    synchronized void stopOutbox()
+    {
+        if (this.outbox != null)
+        {
+            this.outbox.close();
+            this.outbox = null;
+        }
+    }
+
+    /**
+     * Stops sending rate-limited messages. Those still waiting fail, and stay in the outbox if it is closed already.
+     */
+    void stopRateLimiter()
+    {
+        this.rateLimiter.shutdown();
+    }
+
+    /**
+     * Stops keeping notifications for recipients who are away. Those kept so far are put in the outbox,
+     * to be sent, or kept again, after the next start.
+     */
+    synchronized void stopPresence()
+    {
+        final IMOutbox kept = this.outbox;
+        final int recipients = this.presence.shutdown(new SametimePresence.Sink() {
+            public boolean take(final IMNotification digest)
+            {
+                if (kept == null)
+                {
+                    log.warning("No outbox, dropping " + digest);
+                    return true;
+                }
+                try
+                {
+                    kept.append(Collections.singletonList(digest));
+                    return true;
+                }
+                catch (final IOException e)
+                {
+                    // the notifications it merges are still in the outbox on their own
+                    log.log(Level.WARNING, "Could not save " + digest, e);
+                    return false;
+                }
+            }
+        });
+        if (recipients > 0)
+        {
+            log.info("Notifications kept for " + recipients + " recipient(s) who are away are in the outbox.");
+        }
+    }
+
+    /**
+     * Stops answering bot commands.
+     */
+    void stopCommands()
+    {
+        this.commands.shutdown();
+    }
+
+    /**
+     * Stops the threads that send with a deadline.
+     */
+    void stopCircuitBreaker()
+    {
+        this.circuitBreaker.shutdown();
+    }
+
+    /**
+     * Saves the resolved user names for the next run.
+     */
+    synchronized void stopResolutionStore()
+    {
+        if (this.resolutionStore != null)
+        {
+            this.resolutionStore.stop();
+            this.resolutionStore = null;
+        }
+    }
+
+    /**
+     * Marks the provider as shutting down. The current connection and dispatcher are kept to send what is
+     * queued, but nothing is connected, reopened or created again.
+     */
+    synchronized void stop()
+    {
+        this.stopped = true;
+    }
+
+    /**
+     * Returns the dispatcher that sends notifications in the background.
+     * @return The dispatcher, or <code>null</code> once shutting down
+     */
+    synchronized IMNotificationDispatcher getDispatcher()
+    {
+        Assert.isNotNull(this.descriptor, "No configuration available for the dispatcher.");
+        if (this.stopped)
+        {
+            return null;
+        }
+        if (this.dispatcher == null)
+        {
+            updateDispatcher(this.descriptor);
+        }
+        return this.dispatcher;
+    }
+
+    /**
+     * Replaces the dispatcher if its settings have changed. The old one still sends what it has queued.
+     * @param desc The configuration for the Sametime service
+     */
+    private void updateDispatcher(final SametimePublisherDescriptor desc)
+    {
+        if (this.dispatcher != null && this.dispatcher.isConfiguredAs(desc.getDispatcherThreads(),
+                desc.getDispatcherQueueCapacity(), desc.getDispatcherOverflowPolicy(), desc.getFanOutConcurrency(),
+                TimeUnit.SECONDS.toMillis(desc.getDigestWindow())))
+        {
+            return;
+        }
+        shutdownDispatcher();
+        this.dispatcher = new IMNotificationDispatcher("Sametime notification dispatcher", this,
+                desc.getDispatcherThreads(), desc.getDispatcherQueueCapacity(), desc.getDispatcherOverflowPolicy(),
+                desc.getFanOutConcurrency(), TimeUnit.SECONDS.toMillis(desc.getDigestWindow()), this.outbox,
+                this.rateLimiter, this.circuitBreaker);
+    }
+
+    /**
+     * Stops the dispatcher from accepting new notifications, and waits for it to send the queued ones.
+     * @param timeoutMillis how long to wait at most
+     */
+    void drainDispatcher(final long timeoutMillis)
+    {
+        final IMNotificationDispatcher draining;
+        synchronized (this)
+        {
+            draining = this.dispatcher;
+            this.dispatcher = null;
+        }
+        if (draining == null)
+        {
+            return;
+        }
+        // not holding the lock, the workers need it to get the connection
+        log.info("Sending the queued notifications, waiting at most " + TimeUnit.MILLISECONDS.toSeconds(timeoutMillis) + "s.");
+        try
+        {
+            if (draining.drain(timeoutMillis))
+            {
+                log.info("All queued notifications sent.");
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            log.warning("Interrupted while sending the queued notifications.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the dispatcher from accepting new notifications.
+     */
+    synchronized void shutdownDispatcher()
+    {
+        if (this.dispatcher != null)
+        {
+            this.dispatcher.shutdown();
+            this.dispatcher = null;
+        }
+    }
 }
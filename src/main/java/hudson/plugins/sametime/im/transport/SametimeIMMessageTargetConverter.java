@@ -8,12 +8,15 @@ import hudson.plugins.sametime.im.IMMessageTargetConversionException;
 import hudson.plugins.sametime.im.IMMessageTargetConverter;
 import hudson.plugins.sametime.tools.Assert;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,35 +31,39 @@ import com.lotus.sametime.lookup.Resolver;
 
 /**
  * The Sametime IM Message Target Converter resolves String representations of userIds to Sametime addresses, using the lookup service.
+ * Any number of lookups may be in flight at the same time; each caller waits only for the answer to its own names.
+ * Callers asking for a name that is already being looked up wait for that lookup instead of starting another one.
  * @author Jamie Burrell
  * @since 18 Jan 2008
  * @version 1.0
  */
 public class SametimeIMMessageTargetConverter implements IMMessageTargetConverter
 {
+    /** How long to wait for the lookup service to answer, in seconds */
+    static final int RESOLVE_TIMEOUT = 10;
+
     private final LookupService lookupService;
     private final Resolver resolver;
     private static final Logger log = Logger.getLogger(SametimeIMMessageTargetConverter.class.getName());
 
-    private final CyclicBarrier listenBarrier;
-
-    private static final Map<String, SametimeIMMessageTarget> resolutionMap = new HashMap<String, SametimeIMMessageTarget>();
+    private final SametimeResolutionCache resolutionCache;
+    private final Map<String, PendingResolve> pendingResolves = new HashMap<String, PendingResolve>();
     private final ResolveListenerImpl resolveListener;
 
     /**
      * Constructor.
      * @param stsession The Sametime session
+     * @param resolutionCache Where to remember resolved names
      */
-    public SametimeIMMessageTargetConverter(STSession stsession)
+    SametimeIMMessageTargetConverter(STSession stsession, SametimeResolutionCache resolutionCache)
     {
+        this.resolutionCache = resolutionCache;
         // Get a handle to the Lookup Service and add a resolve listener
         log.info("Registering for Lookup Service.");
         lookupService = (LookupService) stsession.getCompApi(LookupService.COMP_NAME);
         resolver = lookupService.createResolver(true, false, true, false);
         resolveListener = new ResolveListenerImpl();
         resolver.addResolveListener(resolveListener);
-
-        listenBarrier = new CyclicBarrier(2);
     }
 
     /* (non-Javadoc)
@@ -67,37 +74,121 @@ public class SametimeIMMessageTargetConverter implements IMMessageTargetConverte
         if(StringUtils.isEmpty(targetAsString))
             return null;
 
-        
-        if( resolutionMap.containsKey(targetAsString) ){
-        	SametimeIMMessageTarget user = resolutionMap.get(targetAsString);
-        	log.info("Already known target ["+ targetAsString +"] as ["+ user.getUser().getName() +"]. Will not try to resolve again.");
-        	return resolutionMap.get(targetAsString);
-        }
+        return fromStrings(Collections.singleton(targetAsString)).get(targetAsString);
+    }
 
-        listenBarrier.reset();
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMMessageTargetConverter#fromStrings(java.util.Collection)
+     */
+    public Map<String, IMMessageTarget> fromStrings(final Collection<String> targetsAsStrings) throws IMMessageTargetConversionException
+    {
+        Assert.isNotNull(targetsAsStrings, "Parameter 'targetsAsStrings' must not be null.");
+        final Map<String, IMMessageTarget> result = new LinkedHashMap<String, IMMessageTarget>();
+        final Map<String, PendingResolve> waitingFor = new LinkedHashMap<String, PendingResolve>();
+        final Set<String> toResolve = new LinkedHashSet<String>();
 
-        resolutionMap.put(targetAsString, null);
-        resolveListener.setTarget(targetAsString);
-        resolver.resolve(targetAsString);
+        final Set<String> names = new LinkedHashSet<String>(targetsAsStrings);
+        names.remove(null);
+        names.remove("");
+        for (final String name : names)
+        {
+            final SametimeResolutionCache.Resolution known = resolutionCache.get(name);
+            if (known != null)
+            {
+                if (known.getTarget() != null)
+                {
+                    log.info("Already known target ["+ name +"] as ["+ known.getTarget().getUser().getName() +"]. Will not try to resolve again.");
+                    result.put(name, known.getTarget());
+                }
+                else
+                {
+                    log.fine("Target [" + name + "] could not be resolved recently. Will not try to resolve again yet.");
+                }
+            }
+            else
+            {
+                waitingFor.put(name, joinOrStartResolve(name, toResolve));
+            }
+        }
+        if (waitingFor.isEmpty())
+        {
+            return result;
+        }
 
-        try
+        // one round trip for all names that are not known yet, and not being looked up by someone else
+        if (!toResolve.isEmpty())
         {
-            listenBarrier.await(10, TimeUnit.SECONDS);
+            resolver.resolve(toResolve.toArray(new String[toResolve.size()]));
         }
-        catch (InterruptedException e)
+
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RESOLVE_TIMEOUT);
+        for (final Map.Entry<String, PendingResolve> entry : waitingFor.entrySet())
         {
-        	log.log(Level.SEVERE, "InterruptedException caught!", e);
+            final PendingResolve pending = entry.getValue();
+            try
+            {
+                if (!pending.await(Math.max(0, deadline - System.currentTimeMillis())))
+                {
+                    log.warning("Timed out resolving [" + entry.getKey() + "].");
+                }
+            }
+            catch (final InterruptedException e)
+            {
+                log.log(Level.SEVERE, "InterruptedException caught!", e);
+                Thread.currentThread().interrupt();
+            }
+            final SametimeIMMessageTarget target = pending.getTarget();
+            if (target != null)
+            {
+                result.put(entry.getKey(), target);
+            }
         }
-        catch (BrokenBarrierException e)
+        return result;
+    }
+
+    /**
+     * Answers the given names from the cache only, never waiting for the server. Names that are not in the
+     * cache at all, e.g. because their lookup timed out, are looked up in the background for the next time.
+     * @param names The names to look up
+     * @return The names known to resolve, with their targets
+     */
+    Map<String, SametimeIMMessageTarget> fromCache(final Collection<String> names)
+    {
+        final Map<String, SametimeIMMessageTarget> result = new LinkedHashMap<String, SametimeIMMessageTarget>();
+        final Set<String> toResolve = new LinkedHashSet<String>();
+        for (final String name : names)
         {
-        	log.log(Level.SEVERE, "BrokenBarrierException caught!", e);
+            final SametimeResolutionCache.Resolution known = resolutionCache.get(name);
+            if (known == null)
+            {
+                joinOrStartResolve(name, toResolve);
+            }
+            else if (known.getTarget() != null)
+            {
+                result.put(name, known.getTarget());
+            }
         }
-        catch (TimeoutException e)
+        if (!toResolve.isEmpty())
         {
-        	log.log(Level.SEVERE, "TimeoutException caught!", e);
+            log.info("Looking up " + toResolve + " in the background, they were not resolved before sending.");
+            resolver.resolve(toResolve.toArray(new String[toResolve.size()]));
         }
+        return result;
+    }
 
-        return resolutionMap.get(targetAsString);
+    /**
+     * Looks the given names up again in the background, updating the cache with the answers.
+     * Nobody waits for the result.
+     * @param names The names to look up
+     */
+    void revalidate(final Collection<String> names)
+    {
+        if (names.isEmpty())
+        {
+            return;
+        }
+        log.info("Revalidating " + names.size() + " cached Sametime users.");
+        resolver.resolve(names.toArray(new String[names.size()]));
     }
 
     /* (non-Javadoc)
@@ -110,61 +201,104 @@ public class SametimeIMMessageTargetConverter implements IMMessageTargetConverte
     }
 
     /**
-     * A subscriber that listens for the results of ID resolution operations.
-     * @author Jamie Burrell
-     * @since 16 Jan 2008
-     * @version 1.0
+     * Returns the lookup in flight for the given name, or registers a new one for the caller to start.
+     * A lookup that got no answer within the timeout is replaced, so a lost answer does not block the name forever.
+     * @param name The name to look up
+     * @param toResolve Gets the name added if the caller has to start the lookup
      */
-    private class ResolveListenerImpl implements ResolveListener
+    private PendingResolve joinOrStartResolve(final String name, final Set<String> toResolve)
     {
-        private String target;
+        synchronized (pendingResolves)
+        {
+            final PendingResolve inFlight = pendingResolves.get(name);
+            if (inFlight != null && !inFlight.isStale())
+            {
+                log.fine("Joining lookup of [" + name + "] already in flight.");
+                return inFlight;
+            }
+            final PendingResolve pending = new PendingResolve();
+            pendingResolves.put(name, pending);
+            toResolve.add(name);
+            return pending;
+        }
+    }
 
-        /**
-         * Getter method for the target field.
-         *
-         * @return The target property.
-         * @see #setTarget(String)
-         */
-        public String getTarget()
+    /**
+     * Completes the lookup for the given name, and with it everyone waiting for it.
+     * @param name The name that was looked up
+     * @param user The user it resolved to, or <code>null</code> if it could not be resolved
+     */
+    private void complete(final String name, final STUser user)
+    {
+        final PendingResolve pending;
+        synchronized (pendingResolves)
+        {
+            pending = pendingResolves.remove(name);
+        }
+        SametimeIMMessageTarget imTarget = null;
+        if (user != null)
         {
-            return target;
+            // create our representation of them as a target
+            imTarget = new SametimeIMMessageTarget(user, name);
+            resolutionCache.putResolved(name, imTarget);
         }
+        else
+        {
+            resolutionCache.putUnresolved(name);
+        }
+        if (pending != null)
+        {
+            pending.complete(imTarget);
+        }
+    }
 
-        /**
-         * Setter method for the target field.
-         *
-         * @param target The new value of the target property.
-         * @see #getTarget()
-         */
-        public void setTarget(String target)
+    /**
+     * The lookup of one name, shared by everyone who asked for it while it was in flight.
+     */
+    private static class PendingResolve
+    {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final long startedAt = System.currentTimeMillis();
+        private volatile SametimeIMMessageTarget target;
+
+        boolean isStale()
+        {
+            return System.currentTimeMillis() - this.startedAt > TimeUnit.SECONDS.toMillis(RESOLVE_TIMEOUT);
+        }
+
+        void complete(final SametimeIMMessageTarget target)
         {
             this.target = target;
+            this.done.countDown();
         }
 
+        boolean await(final long timeoutMillis) throws InterruptedException
+        {
+            return this.done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        SametimeIMMessageTarget getTarget()
+        {
+            return this.target;
+        }
+    }
+
+    /**
+     * A subscriber that listens for the results of ID resolution operations.
+     * It runs on the toolkit's event thread and never blocks; it only hands the answer to whoever is waiting.
+     * @author Jamie Burrell
+     * @since 16 Jan 2008
+     * @version 1.0
+     */
+    private class ResolveListenerImpl implements ResolveListener
+    {
         /* (non-Javadoc)
          * @see com.lotus.sametime.lookup.ResolveListener#resolveConflict(com.lotus.sametime.lookup.ResolveEvent)
          */
-        public void resolveConflict(ResolveEvent arg0)
+        public void resolveConflict(ResolveEvent re)
         {
-            log.info("Resolution of " + target + " caused a conflict.");
-
-            try
-            {
-                // now wait at the barrier to say we've finished
-                listenBarrier.await(10, TimeUnit.SECONDS);
-            }
-            catch (InterruptedException e)
-            {
-            	log.log(Level.SEVERE, "InterruptedException caught!", e);
-            }
-            catch (BrokenBarrierException e)
-            {
-            	log.log(Level.SEVERE, "BrokenBarrierException caught!", e);
-            }
-            catch (TimeoutException e)
-            {
-            	log.log(Level.SEVERE, "TimeoutException caught!", e);
-            }
+            log.info("Resolution of " + re.getName() + " caused a conflict.");
+            complete(re.getName(), null);
         }
 
         /* (non-Javadoc)
@@ -172,24 +306,17 @@ public class SametimeIMMessageTargetConverter implements IMMessageTargetConverte
          */
         public void resolveFailed(ResolveEvent re)
         {
-            log.info("Resolution of " + target + " failed.");
-
-            try
+            final String[] failedNames = re.getFailedNames();
+            if (failedNames == null)
             {
-                // now wait at the barrier to say we've finished
-                listenBarrier.await(10, TimeUnit.SECONDS);
+                log.info("Resolution of " + re.getName() + " failed.");
+                complete(re.getName(), null);
+                return;
             }
-            catch (InterruptedException e)
+            for (final String name : failedNames)
             {
-            	log.log(Level.SEVERE, "InterruptedException caught!", e);
-            }
-            catch (BrokenBarrierException e)
-            {
-            	log.log(Level.SEVERE, "BrokenBarrierException caught!", e);
-            }
-            catch (TimeoutException e)
-            {
-            	log.log(Level.SEVERE, "TimeoutException caught!", e);
+                log.info("Resolution of " + name + " failed.");
+                complete(name, null);
             }
         }
 
@@ -199,34 +326,14 @@ public class SametimeIMMessageTargetConverter implements IMMessageTargetConverte
         public void resolved(ResolveEvent re)
         {
             // we've managed to look up the supplied user in the directory, and now have an object for them
+            STUser user = null;
             if (re.getResolved() instanceof STUser)
             {
-                STUser user = (STUser) re.getResolved();
-                String userName = user.getName();
-                log.info("Resolved to '" + userName + "'.");
-
-                // create our representation of them as a target
-                SametimeIMMessageTarget imTarget = new SametimeIMMessageTarget(user, target);
-                resolutionMap.put(target, imTarget);
-            }
-            try
-            {
-                // now wait at the barrier to say we've finished
-                listenBarrier.await(10, TimeUnit.SECONDS);
-            }
-            catch (InterruptedException e)
-            {
-            	log.log(Level.SEVERE, "InterruptedException caught!", e);
-            }
-            catch (BrokenBarrierException e)
-            {
-            	log.log(Level.SEVERE, "BrokenBarrierException caught!", e);
-            }
-            catch (TimeoutException e)
-            {
-            	log.log(Level.SEVERE, "TimeoutException caught!", e);
+                user = (STUser) re.getResolved();
+                log.info("Resolved '" + re.getName() + "' to '" + user.getName() + "'.");
             }
+            complete(re.getName(), user);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,171 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import hudson.plugins.sametime.im.IMCommandEngine;
+import hudson.plugins.sametime.im.IMDelivery;
+import hudson.plugins.sametime.im.transport.bot.SametimeNotificationBot;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.lotus.sametime.core.constants.EncLevel;
+import com.lotus.sametime.core.constants.ImTypes;
+import com.lotus.sametime.core.types.STUser;
+import com.lotus.sametime.im.Im;
+import com.lotus.sametime.im.InstantMessagingService;
+
+/**
+ * Keeps Im conversations open per partner, so that several notifications to the same user
+ * go over one session instead of an open/close handshake each. Sessions are closed once they
+ * have been idle for a while, and the least recently used one is closed when the pool is full.
+ * Closing happens on the pool's own thread, never on the caller's or the toolkit's.
+ */
+class SametimeImSessionPool
+{
+    /** The maximum number of Ims kept open at the same time */
+    static final int MAX_SESSIONS = 200;
+
+    private static final Logger log = Logger.getLogger(SametimeImSessionPool.class.getName());
+
+    private final InstantMessagingService imService;
+    private final long idleTimeoutMillis;
+    private final IMCommandEngine commands;
+    private final Map<STUser, SametimeNotificationBot> sessions = new LinkedHashMap<STUser, SametimeNotificationBot>(16, 0.75f, true);
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * Constructor.
+     * @param imService The IM service to create Ims with
+     * @param idleTimeoutSeconds How long an unused Im is kept open
+     * @param commands Answers the commands partners send back
+     */
+    SametimeImSessionPool(final InstantMessagingService imService, final int idleTimeoutSeconds,
+            final IMCommandEngine commands)
+    {
+        this.imService = imService;
+        this.commands = commands;
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(idleTimeoutSeconds);
+        this.sweeper = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Sametime IM session sweeper"));
+        final long period = Math.max(1, idleTimeoutSeconds / 2);
+        this.sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                closeIdleSessions();
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends a message to the given user, reusing an open Im if there is one.
+     * @param user The partner
+     * @param delivery The notification to send, completed by the Im's events
+     */
+    synchronized void send(final STUser user, final IMDelivery delivery)
+    {
+        final SametimeNotificationBot bot = this.sessions.get(user);
+        if (bot != null && bot.send(delivery))
+        {
+            return;
+        }
+        if (bot == null && this.sessions.size() >= MAX_SESSIONS)
+        {
+            closeEldestSession();
+        }
+
+        log.info("Opening IM session with target: " + user.getName());
+        final Im im = this.imService.createIm(user, EncLevel.ENC_LEVEL_ALL, ImTypes.IM_TYPE_CHAT);
+        final SametimeNotificationBot newBot = new SametimeNotificationBot(im, this.commands);
+        im.addImListener(newBot);
+        newBot.send(delivery);
+        this.sessions.put(user, newBot);
+        im.open();
+    }
+
+    /**
+     * Closes all Ims and stops the idle sweeper.
+     */
+    void shutdown()
+    {
+        this.sweeper.shutdownNow();
+        final List<SametimeNotificationBot> bots;
+        synchronized (this)
+        {
+            bots = new ArrayList<SametimeNotificationBot>(this.sessions.values());
+            this.sessions.clear();
+        }
+        for (final SametimeNotificationBot bot : bots)
+        {
+            bot.close();
+        }
+    }
+
+    /**
+     * @return the number of Ims currently held by the pool
+     */
+    synchronized int size()
+    {
+        return this.sessions.size();
+    }
+
+    private void closeIdleSessions()
+    {
+        final long idleSince = System.currentTimeMillis() - this.idleTimeoutMillis;
+        final List<SametimeNotificationBot> idle = new ArrayList<SametimeNotificationBot>();
+        synchronized (this)
+        {
+            for (final Iterator<SametimeNotificationBot> it = this.sessions.values().iterator(); it.hasNext();)
+            {
+                final SametimeNotificationBot bot = it.next();
+                if (bot.isIdle(idleSince))
+                {
+                    idle.add(bot);
+                    it.remove();
+                }
+            }
+        }
+        for (final SametimeNotificationBot bot : idle)
+        {
+            bot.close();
+        }
+    }
+
+    private void closeEldestSession()
+    {
+        final Iterator<SametimeNotificationBot> it = this.sessions.values().iterator();
+        if (it.hasNext())
+        {
+            final SametimeNotificationBot eldest = it.next();
+            it.remove();
+            closeLater(eldest);
+        }
+    }
+
+    private void closeLater(final SametimeNotificationBot bot)
+    {
+        try
+        {
+            this.sweeper.execute(new Runnable() {
+                public void run()
+                {
+                    bot.close();
+                }
+            });
+        }
+        catch (final RejectedExecutionException e)
+        {
+            log.fine("Pool is shut down, closing IM session directly.");
+            bot.close();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import hudson.plugins.sametime.im.IMDelivery;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.lotus.sametime.core.constants.EncLevel;
+import com.lotus.sametime.places.Place;
+import com.lotus.sametime.places.PlaceAdapter;
+import com.lotus.sametime.places.PlaceEvent;
+import com.lotus.sametime.places.PlacesConstants;
+import com.lotus.sametime.places.PlacesService;
+
+/**
+ * The Sametime places (group chats) a login is in. A message to a place is sent once and reaches
+ * everyone in it, instead of one Im per member. The configured places are entered at login and
+ * entered again whenever the bot is dropped from one, so that sending never waits for the handshake;
+ * other places are entered on their first message. Messages to a place that is being entered wait for it.
+ */
+class SametimePlaces
+{
+    /** How long to wait before entering a place again after leaving it or failing to enter, in milliseconds */
+    static final long REENTER_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Logger log = Logger.getLogger(SametimePlaces.class.getName());
+
+    private final PlacesService placesService;
+    private final Map<String, Room> rooms = new HashMap<String, Room>();
+    private final ScheduledExecutorService timer;
+    private boolean closed;
+
+    /**
+     * One place, and the messages waiting for the bot to be in it.
+     */
+    private class Room extends PlaceAdapter
+    {
+        private final String name;
+        private final List<IMDelivery> waiting = new ArrayList<IMDelivery>();
+        private Place place;
+        private boolean entered;
+
+        Room(final String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Starts entering the place, creating it if nobody is in it yet. Called holding the SametimePlaces lock.
+         */
+        void enter()
+        {
+            log.info("Entering Sametime place " + this.name + ".");
+            try
+            {
+                this.place = placesService.createPlace(this.name, this.name, EncLevel.ENC_LEVEL_ALL, 0,
+                        PlacesConstants.PLACE_CREATION_DONT_CARE);
+                this.place.addPlaceListener(this);
+                this.place.enter();
+            }
+            catch (final RuntimeException e)
+            {
+                log.log(Level.WARNING, "Could not enter Sametime place " + this.name + ", trying again in "
+                        + TimeUnit.MILLISECONDS.toSeconds(REENTER_DELAY) + "s.", e);
+                enterLater(this);
+            }
+        }
+
+        @Override
+        public void entered(final PlaceEvent event)
+        {
+            final List<IMDelivery> toSend;
+            synchronized (SametimePlaces.this)
+            {
+                this.entered = true;
+                toSend = new ArrayList<IMDelivery>(this.waiting);
+                this.waiting.clear();
+            }
+            log.info("Entered Sametime place " + this.name + (toSend.isEmpty() ? "." : ", sending " + toSend.size() + " message(s)."));
+            for (final IMDelivery delivery : toSend)
+            {
+                sendText(this, delivery);
+            }
+        }
+
+        @Override
+        public void enterFailed(final PlaceEvent event)
+        {
+            final List<IMDelivery> failed;
+            synchronized (SametimePlaces.this)
+            {
+                failed = new ArrayList<IMDelivery>(this.waiting);
+                this.waiting.clear();
+            }
+            final String reason = "could not enter place " + this.name + ", reason 0x" + Integer.toHexString(event.getReason());
+            log.warning(reason + ", trying again in " + TimeUnit.MILLISECONDS.toSeconds(REENTER_DELAY) + "s.");
+            for (final IMDelivery delivery : failed)
+            {
+                delivery.fail(reason);
+            }
+            enterLater(this);
+        }
+
+        @Override
+        public void left(final PlaceEvent event)
+        {
+            synchronized (SametimePlaces.this)
+            {
+                this.entered = false;
+                if (closed)
+                {
+                    return;
+                }
+            }
+            log.warning("Left Sametime place " + this.name + ", reason 0x" + Integer.toHexString(event.getReason())
+                    + ", entering again in " + TimeUnit.MILLISECONDS.toSeconds(REENTER_DELAY) + "s.");
+            enterLater(this);
+        }
+    }
+
+    /**
+     * Constructor. Starts entering the given places.
+     * @param placesService The places service of a logged in session
+     * @param initialPlaces The places to be in all the time
+     */
+    SametimePlaces(final PlacesService placesService, final Collection<String> initialPlaces)
+    {
+        this.placesService = placesService;
+        this.timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Sametime places"));
+        synchronized (this)
+        {
+            for (final String name : initialPlaces)
+            {
+                roomFor(name);
+            }
+        }
+    }
+
+    /**
+     * Sends a message to everyone in a place, entering it first if needed.
+     * @param name The name of the place
+     * @param delivery The notification to send
+     */
+    void send(final String name, final IMDelivery delivery)
+    {
+        final Room room;
+        synchronized (this)
+        {
+            if (this.closed)
+            {
+                delivery.fail("connection closed");
+                return;
+            }
+            room = roomFor(name);
+            if (!room.entered)
+            {
+                room.waiting.add(delivery);
+                return;
+            }
+        }
+        sendText(room, delivery);
+    }
+
+    /**
+     * Leaves all places. Messages still waiting for a place fail.
+     */
+    void shutdown()
+    {
+        final List<Room> all;
+        synchronized (this)
+        {
+            this.closed = true;
+            all = new ArrayList<Room>(this.rooms.values());
+            this.rooms.clear();
+        }
+        this.timer.shutdownNow();
+        for (final Room room : all)
+        {
+            for (final IMDelivery delivery : room.waiting)
+            {
+                delivery.fail("connection closed");
+            }
+            if (room.place == null)
+            {
+                continue;
+            }
+            try
+            {
+                room.place.leave(0);
+            }
+            catch (final RuntimeException e)
+            {
+                log.log(Level.FINE, "Could not leave place " + room.name, e);
+            }
+        }
+    }
+
+    /**
+     * @return the names of the places the bot is in
+     */
+    synchronized List<String> getEnteredPlaces()
+    {
+        final List<String> entered = new ArrayList<String>();
+        for (final Room room : this.rooms.values())
+        {
+            if (room.entered)
+            {
+                entered.add(room.name);
+            }
+        }
+        return entered;
+    }
+
+    private Room roomFor(final String name)
+    {
+        final String key = name.trim().toLowerCase();
+        Room room = this.rooms.get(key);
+        if (room == null)
+        {
+            room = new Room(name.trim());
+            this.rooms.put(key, room);
+            room.enter();
+        }
+        return room;
+    }
+
+    private void enterLater(final Room room)
+    {
+        try
+        {
+            this.timer.schedule(new Runnable() {
+                public void run()
+                {
+                    synchronized (SametimePlaces.this)
+                    {
+                        if (!closed && rooms.get(room.name.toLowerCase()) == room && !room.entered)
+                        {
+                            room.enter();
+                        }
+                    }
+                }
+            }, REENTER_DELAY, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // shut down
+        }
+    }
+
+    /**
+     * Hands the text to the toolkit. Places do not acknowledge messages, so this is as far as the delivery can be followed.
+     */
+    private static void sendText(final Room room, final IMDelivery delivery)
+    {
+        try
+        {
+            room.place.sendText(delivery.getNotification().getText());
+            delivery.succeed();
+        }
+        catch (final RuntimeException e)
+        {
+            log.log(Level.WARNING, "Could not send to place " + room.name, e);
+            delivery.fail(e.toString());
+        }
+    }
+}
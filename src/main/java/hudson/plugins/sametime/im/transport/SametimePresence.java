@@ -0,0 +1,325 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import hudson.plugins.sametime.im.IMDelivery;
+import hudson.plugins.sametime.im.IMDigester;
+import hudson.plugins.sametime.im.IMNotification;
+import hudson.plugins.sametime.im.IMNotificationPriority;
+import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.lotus.sametime.awareness.STWatchedUser;
+import com.lotus.sametime.core.types.STUser;
+import com.lotus.sametime.core.types.STUserStatus;
+
+/**
+ * What the bot knows about the online status of its recipients, as reported by the awareness watch lists
+ * of its logins. A notification to someone who is offline or does not want to be disturbed would only fail to
+ * open an Im, so it is kept here instead and dispatched again, as one digest, once the recipient is reachable.
+ * Only the latest notification per job is kept, as that is the job's current state. Recipients whose status
+ * is not known yet are sent to right away; if that fails, the notification is kept until their status is reported.
+ * The delivery of a kept notification is held until the digest containing it has been taken by the sink, so that
+ * it stays in the outbox meanwhile.
+ */
+class SametimePresence
+{
+    /** The maximum number of jobs notifications are kept for per recipient, the least urgent ones go first */
+    static final int MAX_DEFERRED = 50;
+    /** How long a notification other than a failure is kept for a recipient who stays away, in milliseconds */
+    static final long MAX_DEFER_AGE = TimeUnit.HOURS.toMillis(24);
+
+    private static final Logger log = Logger.getLogger(SametimePresence.class.getName());
+
+    /**
+     * Takes the notifications kept for a recipient.
+     */
+    interface Sink
+    {
+        /**
+         * Called on the presence thread, never on the toolkit's, or on the thread shutting down.
+         * @param digest the notifications kept for the recipient, merged into one
+         * @return <code>true</code> if the digest was taken, e.g. journaled, and what it merges may be released
+         */
+        boolean take(IMNotification digest);
+    }
+
+    private final Sink sink;
+    private final ThreadPoolExecutor executor;
+    /** the last status type reported per user id */
+    private final Map<String, Short> statuses = new HashMap<String, Short>();
+    private final Map<String, Deferred> deferred = new HashMap<String, Deferred>();
+    private boolean closed;
+
+    /**
+     * The deliveries kept for one recipient, the latest per job, oldest first.
+     */
+    private static class Deferred
+    {
+        private final STUser user;
+        private final LinkedHashMap<String, IMDelivery> latest = new LinkedHashMap<String, IMDelivery>();
+
+        Deferred(final STUser user)
+        {
+            this.user = user;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param sink where to hand the notifications of recipients who are back
+     */
+    SametimePresence(final Sink sink)
+    {
+        Assert.isNotNull(sink, "Parameter 'sink' must not be null.");
+        this.sink = sink;
+        this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("Sametime presence"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Tells whether a user can be sent to now.
+     * @param user The user
+     * @return <code>false</code> if the user is known to be offline or not to be disturbed
+     */
+    synchronized boolean isReachable(final STUser user)
+    {
+        final Short status = this.statuses.get(key(user));
+        return status == null || isReachable(status.shortValue());
+    }
+
+    /**
+     * Tells whether a user has been reported to be reachable.
+     * @param user The user
+     * @return <code>true</code> if the last reported status was neither offline nor do not disturb
+     */
+    synchronized boolean isKnownReachable(final STUser user)
+    {
+        final Short status = this.statuses.get(key(user));
+        return status != null && isReachable(status.shortValue());
+    }
+
+    /**
+     * Keeps a notification until its recipient is reachable, and completes its delivery as deferred.
+     * It replaces what was kept for the same job, which is released. The delivery is held while it is kept.
+     * @param user The recipient
+     * @param delivery The notification
+     */
+    void defer(final STUser user, final IMDelivery delivery)
+    {
+        final String reason;
+        synchronized (this)
+        {
+            if (this.closed)
+            {
+                delivery.fail("connection closed");
+                return;
+            }
+            final String key = key(user);
+            Deferred d = this.deferred.get(key);
+            if (d == null)
+            {
+                d = new Deferred(user);
+                this.deferred.put(key, d);
+            }
+            final String source = delivery.getNotification().getSource();
+            delivery.hold();
+            // removed first so that the job moves to the end
+            final IMDelivery replaced = d.latest.remove(source);
+            d.latest.put(source, delivery);
+            if (replaced != null)
+            {
+                replaced.release();
+            }
+            if (d.latest.size() > MAX_DEFERRED)
+            {
+                final IMDelivery dropped = d.latest.remove(leastUrgent(d));
+                log.warning("Too many notifications kept for " + user.getName() + ", dropping " + dropped.getNotification());
+                dropped.release();
+            }
+            final Short status = this.statuses.get(key);
+            reason = user.getName() + " is " + describe(status != null ? status.shortValue() : STUserStatus.ST_USER_STATUS_UNKNOWN);
+        }
+        delivery.defer(reason);
+    }
+
+    /**
+     * Records the status of watched users, and sends what is kept for those who are reachable again.
+     * Called on the toolkit's event thread.
+     * @param users The users whose status changed
+     */
+    void statusChanged(final STWatchedUser[] users)
+    {
+        final List<Deferred> back = new ArrayList<Deferred>();
+        synchronized (this)
+        {
+            for (final STWatchedUser user : users)
+            {
+                if (user.getStatus() == null)
+                {
+                    continue;
+                }
+                final String key = key(user);
+                final short status = user.getStatus().getStatusType();
+                this.statuses.put(key, status);
+                if (isReachable(status) && this.deferred.containsKey(key))
+                {
+                    back.add(this.deferred.remove(key));
+                }
+            }
+        }
+        for (final Deferred d : back)
+        {
+            release(d);
+        }
+    }
+
+    /**
+     * @return the recipients notifications are kept for, to be watched by every new login
+     */
+    synchronized List<STUser> getDeferredUsers()
+    {
+        final List<STUser> users = new ArrayList<STUser>();
+        for (final Deferred d : this.deferred.values())
+        {
+            users.add(d.user);
+        }
+        return users;
+    }
+
+    /**
+     * @return the number of notifications kept for recipients who are away
+     */
+    synchronized int getDeferredCount()
+    {
+        int count = 0;
+        for (final Deferred d : this.deferred.values())
+        {
+            count += d.latest.size();
+        }
+        return count;
+    }
+
+    /**
+     * Stops the presence thread, and hands what is still kept to the given sink, one digest per recipient.
+     * What the sink does not take stays held, and so in the outbox.
+     * @param keep where to keep the notifications until the next start
+     * @return the number of recipients notifications were kept for
+     */
+    int shutdown(final Sink keep)
+    {
+        final List<Deferred> left;
+        synchronized (this)
+        {
+            this.closed = true;
+            left = new ArrayList<Deferred>(this.deferred.values());
+            this.deferred.clear();
+        }
+        this.executor.shutdown();
+        for (final Deferred d : left)
+        {
+            hand(d, keep);
+        }
+        return left.size();
+    }
+
+    private void release(final Deferred d)
+    {
+        log.info(d.user.getName() + " is reachable again, sending the notifications kept for " + d.latest.size() + " job(s).");
+        try
+        {
+            this.executor.execute(new Runnable() {
+                public void run()
+                {
+                    hand(d, sink);
+                }
+            });
+        }
+        catch (final RejectedExecutionException e)
+        {
+            log.warning("Not sending the notifications kept for " + d.user.getName() + ", shutting down.");
+        }
+    }
+
+    /**
+     * Merges what is kept for a recipient, leaving out everything but failures that has been kept too long,
+     * and releases the deliveries once the digest has been taken.
+     */
+    private static void hand(final Deferred d, final Sink to)
+    {
+        final List<IMNotification> notifications = new ArrayList<IMNotification>();
+        final long oldest = System.currentTimeMillis() - MAX_DEFER_AGE;
+        for (final IMDelivery delivery : d.latest.values())
+        {
+            final IMNotification notification = delivery.getNotification();
+            if (notification.getPriority() == IMNotificationPriority.URGENT || notification.getCreatedAt() >= oldest)
+            {
+                notifications.add(notification);
+            }
+        }
+        if (!notifications.isEmpty() && !to.take(IMDigester.merge(notifications)))
+        {
+            log.warning("The notifications kept for " + d.user.getName() + " were not taken, they stay in the outbox.");
+            return;
+        }
+        for (final IMDelivery delivery : d.latest.values())
+        {
+            delivery.release();
+        }
+    }
+
+    /**
+     * @return the job of the least urgent notification kept, the oldest one if there are several
+     */
+    private static String leastUrgent(final Deferred d)
+    {
+        String job = null;
+        IMNotificationPriority lowest = null;
+        for (final Map.Entry<String, IMDelivery> entry : d.latest.entrySet())
+        {
+            final IMNotificationPriority priority = entry.getValue().getNotification().getPriority();
+            if (lowest == null || priority.compareTo(lowest) > 0)
+            {
+                lowest = priority;
+                job = entry.getKey();
+            }
+        }
+        return job;
+    }
+
+    private static boolean isReachable(final short status)
+    {
+        return status != STUserStatus.ST_USER_STATUS_OFFLINE && status != STUserStatus.ST_USER_STATUS_DND;
+    }
+
+    private static String describe(final short status)
+    {
+        switch (status)
+        {
+        case STUserStatus.ST_USER_STATUS_OFFLINE :
+            return "offline";
+        case STUserStatus.ST_USER_STATUS_DND :
+            return "not to be disturbed";
+        default :
+            return "not known to be online";
+        }
+    }
+
+    private static String key(final STUser user)
+    {
+        return user.getId().getId();
+    }
+}
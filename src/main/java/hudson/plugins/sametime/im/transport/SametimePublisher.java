@@ -9,11 +9,12 @@ import hudson.plugins.sametime.im.IMConnection;
 import hudson.plugins.sametime.im.IMException;
 import hudson.plugins.sametime.im.IMMessageTargetConversionException;
 import hudson.plugins.sametime.im.IMMessageTargetConverter;
+import hudson.plugins.sametime.im.IMNotificationDispatcher;
 import hudson.plugins.sametime.im.IMPublisher;
-import hudson.plugins.sametime.tools.Assert;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Publisher;
 
+import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,8 +31,6 @@ public class SametimePublisher extends IMPublisher
     @Extension
     public static final SametimePublisherDescriptor DESCRIPTOR = new SametimePublisherDescriptor();
 
-    private static IMMessageTargetConverter CONVERTER;
-
     /**
      * Constructor.
      * @param targetsAsString The people to notify
@@ -59,6 +58,15 @@ public class SametimePublisher extends IMPublisher
         return SametimePublisher.DESCRIPTOR;
     }
 
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMPublisher#preResolveTargets(java.util.Collection)
+     */
+    @Override
+    protected void preResolveTargets(final Collection<String> targetNames)
+    {
+        SametimeIMConnectionProvider.getInstance().preResolve(targetNames);
+    }
+
     /* (non-Javadoc)
      * @see hudson.plugins.sametime.im.IMPublisher#getIMConnection()
      */
@@ -68,25 +76,40 @@ public class SametimePublisher extends IMPublisher
         return SametimeIMConnectionProvider.getInstance().currentConnection();
     }
 
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMPublisher#getBulkThreshold()
+     */
+    @Override
+    protected int getBulkThreshold()
+    {
+        return SametimePublisher.DESCRIPTOR.getBulkThreshold();
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.IMPublisher#getNotificationDispatcher()
+     */
+    @Override
+    protected IMNotificationDispatcher getNotificationDispatcher()
+    {
+        return SametimeIMConnectionProvider.getInstance().getDispatcher();
+    }
+
     /* (non-Javadoc)
      * @see hudson.plugins.sametime.im.IMPublisher#getIMMessageTargetConverter()
      */
     @Override
     protected IMMessageTargetConverter getIMMessageTargetConverter()
     {
-        if(null == SametimePublisher.CONVERTER)
+        try
+        {
+            SametimeConnectionPool conn = (SametimeConnectionPool)getIMConnection();
+            // still connecting, the targets are resolved when they are needed
+            return conn != null ? conn.getConverter() : null;
+        }
+        catch (IMException e)
         {
-            try
-            {
-                SametimeIMConnection conn = (SametimeIMConnection)getIMConnection();
-                Assert.isNotNull(conn, "Could not obtain the current connection to Sametime.");
-                SametimePublisher.CONVERTER = new SametimeIMMessageTargetConverter(conn.getSession());
-            }
-            catch (IMException e)
-            {
-            	log.log(Level.SEVERE, "IMException caught!", e);
-            }
+            log.log(Level.SEVERE, "IMException caught!", e);
+            return null;
         }
-        return SametimePublisher.CONVERTER;
     }
 }
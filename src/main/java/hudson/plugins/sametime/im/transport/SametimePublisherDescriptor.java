@@ -6,10 +6,11 @@ package hudson.plugins.sametime.im.transport;
 import hudson.Util;
 import hudson.model.AbstractProject;
 import hudson.util.FormValidation;
+import hudson.util.Secret;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
-import hudson.plugins.sametime.im.IMException;
 import hudson.plugins.sametime.im.IMMessageTargetConversionException;
+import hudson.plugins.sametime.im.IMOverflowPolicy;
 import hudson.plugins.sametime.tools.Assert;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Publisher;
@@ -21,6 +22,9 @@ import javax.servlet.ServletException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.QueryParameter;
 import java.util.logging.Level;
@@ -37,6 +41,10 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
 {
     private static final Logger log = Logger.getLogger(SametimeIMConnection.class.getName());
     private static final String PREFIX = "sametimePlugin.";
+    /** Servers are separated by commas or whitespace, as help-server.html says */
+    private static final String SERVER_SEPARATORS = "[\\s,]+";
+    /** Group chats are separated by whitespace, as the configuration screen says */
+    private static final String GROUP_CHAT_SEPARATORS = "\\s+";
     /** Name for the PORT parameter, as it appears in the jelly scripts   */
     public static final String PARAMETERNAME_PORT = SametimePublisherDescriptor.PREFIX + "port";
     /** Name for the HOSTNAME parameter, as it appears in the jelly scripts   */
@@ -59,8 +67,36 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
     public static final String PARAMETERNAME_NOTIFY_FIXERS = SametimePublisherDescriptor.PREFIX + "notifyFixers";
     /** Name for the INITIAL_GROUPCHATS parameter, as it appears in the jelly scripts   */
     public static final String PARAMETERNAME_INITIAL_GROUPCHATS = SametimePublisherDescriptor.PREFIX + "initialGroupChats";
+    /** Name for the ADDITIONAL_ACCOUNT_ID parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_ADDITIONAL_ACCOUNT_ID = SametimePublisherDescriptor.PREFIX + "additionalAccountId";
+    /** Name for the ADDITIONAL_ACCOUNT_PASSWORD parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_ADDITIONAL_ACCOUNT_PASSWORD = SametimePublisherDescriptor.PREFIX + "additionalAccountPassword";
     /** Name for the COMMAND_PREFIX parameter, as it appears in the jelly scripts   */
     public static final String PARAMETERNAME_COMMAND_PREFIX = SametimePublisherDescriptor.PREFIX + "commandPrefix";
+    /** Name for the DISPATCHER_THREADS parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_DISPATCHER_THREADS = SametimePublisherDescriptor.PREFIX + "dispatcherThreads";
+    /** Name for the DISPATCHER_QUEUE_CAPACITY parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_DISPATCHER_QUEUE_CAPACITY = SametimePublisherDescriptor.PREFIX + "dispatcherQueueCapacity";
+    /** Name for the DISPATCHER_OVERFLOW_POLICY parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_DISPATCHER_OVERFLOW_POLICY = SametimePublisherDescriptor.PREFIX + "dispatcherOverflowPolicy";
+    /** Name for the FAN_OUT_CONCURRENCY parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_FAN_OUT_CONCURRENCY = SametimePublisherDescriptor.PREFIX + "fanOutConcurrency";
+    /** Name for the DIGEST_WINDOW parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_DIGEST_WINDOW = SametimePublisherDescriptor.PREFIX + "digestWindow";
+    /** Name for the RATE_LIMIT parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_RATE_LIMIT = SametimePublisherDescriptor.PREFIX + "rateLimit";
+    /** Name for the RECIPIENT_RATE_LIMIT parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_RECIPIENT_RATE_LIMIT = SametimePublisherDescriptor.PREFIX + "recipientRateLimit";
+    /** Name for the SHUTDOWN_TIMEOUT parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_SHUTDOWN_TIMEOUT = SametimePublisherDescriptor.PREFIX + "shutdownTimeout";
+    /** Name for the BULK_THRESHOLD parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_BULK_THRESHOLD = SametimePublisherDescriptor.PREFIX + "bulkThreshold";
+    /** Name for the IM_SESSION_IDLE_TIMEOUT parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_IM_SESSION_IDLE_TIMEOUT = SametimePublisherDescriptor.PREFIX + "imSessionIdleTimeout";
+    /** Name for the RESOLUTION_TTL parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_RESOLUTION_TTL = SametimePublisherDescriptor.PREFIX + "resolutionTtl";
+    /** Name for the NEGATIVE_RESOLUTION_TTL parameter, as it appears in the jelly scripts   */
+    public static final String PARAMETERNAME_NEGATIVE_RESOLUTION_TTL = SametimePublisherDescriptor.PREFIX + "negativeResolutionTtl";
     /** Default value for the STRATEGY_ALL parameter  */
     public static final String PARAMETERVALUE_STRATEGY_ALL = "all";
     /** Default value for the STRATEGY_FAILURE parameter  */
@@ -75,16 +111,55 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
     };
     /** Default value for the STRATEGY_DEFAULT parameter  */
     public static final String PARAMETERVALUE_STRATEGY_DEFAULT = PARAMETERVALUE_STRATEGY_STATE_CHANGE;
+    /**  DEFAULT_PORT, the one Sametime community servers accept client connections on  */
+    public static final int DEFAULT_PORT = 1533;
+    /**  OLD_DEFAULT_PORT, a Jabber port older versions saved but never used for Sametime  */
+    static final int OLD_DEFAULT_PORT = 5222;
     /**  DEFAULT_COMMAND_PREFIX  */
     public static final String DEFAULT_COMMAND_PREFIX = "!";
+    /**  DEFAULT_DISPATCHER_THREADS  */
+    public static final int DEFAULT_DISPATCHER_THREADS = 2;
+    /**  DEFAULT_DISPATCHER_QUEUE_CAPACITY  */
+    public static final int DEFAULT_DISPATCHER_QUEUE_CAPACITY = 500;
+    /**  DEFAULT_FAN_OUT_CONCURRENCY  */
+    public static final int DEFAULT_FAN_OUT_CONCURRENCY = 8;
+    /**  DEFAULT_DIGEST_WINDOW, in seconds; 0 sends every notification on its own  */
+    public static final int DEFAULT_DIGEST_WINDOW = 0;
+    /**  DEFAULT_RATE_LIMIT, in messages per minute; 0 means no limit  */
+    public static final int DEFAULT_RATE_LIMIT = 0;
+    /**  DEFAULT_RECIPIENT_RATE_LIMIT, in messages per minute; 0 means no limit  */
+    public static final int DEFAULT_RECIPIENT_RATE_LIMIT = 0;
+    /**  DEFAULT_SHUTDOWN_TIMEOUT, in seconds  */
+    public static final int DEFAULT_SHUTDOWN_TIMEOUT = 30;
+    /**  DEFAULT_BULK_THRESHOLD, in recipients; 0 never sends an announcement  */
+    public static final int DEFAULT_BULK_THRESHOLD = 50;
+    /**  DEFAULT_RESOLUTION_TTL, in seconds  */
+    public static final int DEFAULT_RESOLUTION_TTL = 3600;
+    /**  DEFAULT_NEGATIVE_RESOLUTION_TTL, in seconds  */
+    public static final int DEFAULT_NEGATIVE_RESOLUTION_TTL = 300;
+    /**  DEFAULT_IM_SESSION_IDLE_TIMEOUT, in seconds  */
+    public static final int DEFAULT_IM_SESSION_IDLE_TIMEOUT = 300;
 
-    private int port = 5222;
+    private int port = DEFAULT_PORT;
     private String hostname = null;
     private String hudsonNickname = "hudson";
     private String hudsonPassword = "secret";
     private boolean exposePresence = true;
     private String initialGroupChats = null;
+    private List<SametimeAccount> additionalAccounts = new ArrayList<SametimeAccount>();
     private String commandPrefix = DEFAULT_COMMAND_PREFIX;
+    private int dispatcherThreads = DEFAULT_DISPATCHER_THREADS;
+    private int dispatcherQueueCapacity = DEFAULT_DISPATCHER_QUEUE_CAPACITY;
+    private IMOverflowPolicy dispatcherOverflowPolicy = IMOverflowPolicy.DISCARD_OLDEST;
+    private int fanOutConcurrency = DEFAULT_FAN_OUT_CONCURRENCY;
+    private int imSessionIdleTimeout = DEFAULT_IM_SESSION_IDLE_TIMEOUT;
+    private int digestWindow = DEFAULT_DIGEST_WINDOW;
+    private int rateLimit = DEFAULT_RATE_LIMIT;
+    private int recipientRateLimit = DEFAULT_RECIPIENT_RATE_LIMIT;
+    private int shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    private int bulkThreshold = DEFAULT_BULK_THRESHOLD;
+    private int resolutionTtl = DEFAULT_RESOLUTION_TTL;
+    private int negativeResolutionTtl = DEFAULT_NEGATIVE_RESOLUTION_TTL;
 
     /**
      * Constructor.
@@ -93,15 +168,22 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
     {
         super(SametimePublisher.class);
         load();
-        try
-        {
-            SametimeIMConnectionProvider.getInstance().createConnection(this);
-        }
-        catch (final IMException dontCare)
+        // logs in in the background, an unreachable server must not hold up Jenkins startup
+        SametimeIMConnectionProvider.getInstance().connect(this);
+    }
+
+    /**
+     * Migrates configurations saved by older versions.
+     * @return this descriptor
+     */
+    protected Object readResolve()
+    {
+        if (this.port == OLD_DEFAULT_PORT)
         {
-            // Server temporarily unavailable ?
-            dontCare.printStackTrace();
+            log.info("Using the Sametime port " + DEFAULT_PORT + " instead of the saved Jabber port " + OLD_DEFAULT_PORT + ".");
+            this.port = DEFAULT_PORT;
         }
+        return this;
     }
 
     /**
@@ -114,16 +196,19 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
         final String s = req.getParameter(SametimePublisherDescriptor.PARAMETERNAME_HOSTNAME);
         if (s != null && s.trim().length() > 0)
         {
-            try
-            {
-                InetAddress.getByName(s); // try to resolve
-                this.hostname = s;
-            }
-            catch (final UnknownHostException e)
+            for (final String server : split(s, SERVER_SEPARATORS))
             {
-                throw new FormException("Cannot find Host '" + s + "'.",
-                        SametimePublisherDescriptor.PARAMETERNAME_HOSTNAME);
+                try
+                {
+                    InetAddress.getByName(server); // try to resolve
+                }
+                catch (final UnknownHostException e)
+                {
+                    throw new FormException("Cannot find Host '" + server + "'.",
+                            SametimePublisherDescriptor.PARAMETERNAME_HOSTNAME);
+                }
             }
+            this.hostname = s.trim();
         }
         else
         {
@@ -184,7 +269,7 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
                 throw new FormException("Port cannot be parsed.", SametimePublisherDescriptor.PARAMETERNAME_PORT);
             }
         } else {
-            this.port = 5222;
+            this.port = DEFAULT_PORT;
         }
     }
 
@@ -205,6 +290,56 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
     	this.initialGroupChats = Util.fixEmptyAndTrim(req.getParameter(SametimePublisherDescriptor.PARAMETERNAME_INITIAL_GROUPCHATS));
     }
 
+    /**
+     * Sets the further bot logins, one ID and password field each. The stored passwords are never shown on
+     * the page, so an empty password keeps the one saved for the same ID.
+     * @param req The form request
+     * @throws FormException
+     */
+    private void applyAdditionalAccounts(final HttpServletRequest req) throws FormException
+    {
+        final String[] ids = req.getParameterValues(SametimePublisherDescriptor.PARAMETERNAME_ADDITIONAL_ACCOUNT_ID);
+        final String[] passwords = req.getParameterValues(SametimePublisherDescriptor.PARAMETERNAME_ADDITIONAL_ACCOUNT_PASSWORD);
+        final List<SametimeAccount> accounts = new ArrayList<SametimeAccount>();
+        if (ids != null)
+        {
+            for (int i = 0; i < ids.length; i++)
+            {
+                final String id = Util.fixEmptyAndTrim(ids[i]);
+                final String password = passwords != null && i < passwords.length ? Util.fixEmpty(passwords[i]) : null;
+                if (id == null)
+                {
+                    continue;
+                }
+                if (password != null)
+                {
+                    accounts.add(new SametimeAccount(id, Secret.fromString(password)));
+                    continue;
+                }
+                final SametimeAccount saved = getAdditionalAccount(id);
+                if (saved == null)
+                {
+                    throw new FormException("Password for additional login '" + id + "' cannot be empty.",
+                            SametimePublisherDescriptor.PARAMETERNAME_ADDITIONAL_ACCOUNT_PASSWORD);
+                }
+                accounts.add(new SametimeAccount(id, saved.getSecret()));
+            }
+        }
+        this.additionalAccounts = accounts;
+    }
+
+    private SametimeAccount getAdditionalAccount(final String id)
+    {
+        for (final SametimeAccount account : this.additionalAccounts)
+        {
+            if (account.getNickname().equalsIgnoreCase(id))
+            {
+                return account;
+            }
+        }
+        return null;
+    }
+
     /**
      * Sets the prefix for bot commands
      * @param req The form request
@@ -218,6 +353,102 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
     	}
     }
 
+    /**
+     * Sets the size of the notification dispatcher, and does some validation.
+     * @param req The form request
+     * @throws FormException
+     */
+    private void applyDispatcher(final HttpServletRequest req) throws FormException
+    {
+        this.dispatcherThreads = parsePositiveInt(req, PARAMETERNAME_DISPATCHER_THREADS, DEFAULT_DISPATCHER_THREADS);
+        this.dispatcherQueueCapacity = parsePositiveInt(req, PARAMETERNAME_DISPATCHER_QUEUE_CAPACITY, DEFAULT_DISPATCHER_QUEUE_CAPACITY);
+        this.fanOutConcurrency = parsePositiveInt(req, PARAMETERNAME_FAN_OUT_CONCURRENCY, DEFAULT_FAN_OUT_CONCURRENCY);
+        this.digestWindow = parseInt(req, PARAMETERNAME_DIGEST_WINDOW, DEFAULT_DIGEST_WINDOW, 0);
+        this.rateLimit = parseInt(req, PARAMETERNAME_RATE_LIMIT, DEFAULT_RATE_LIMIT, 0);
+        this.recipientRateLimit = parseInt(req, PARAMETERNAME_RECIPIENT_RATE_LIMIT, DEFAULT_RECIPIENT_RATE_LIMIT, 0);
+        this.shutdownTimeout = parseInt(req, PARAMETERNAME_SHUTDOWN_TIMEOUT, DEFAULT_SHUTDOWN_TIMEOUT, 0);
+        this.bulkThreshold = parseInt(req, PARAMETERNAME_BULK_THRESHOLD, DEFAULT_BULK_THRESHOLD, 0);
+        final String p = Util.fixEmptyAndTrim(req.getParameter(PARAMETERNAME_DISPATCHER_OVERFLOW_POLICY));
+        if (p != null)
+        {
+            try
+            {
+                this.dispatcherOverflowPolicy = IMOverflowPolicy.valueOf(p);
+            }
+            catch (final IllegalArgumentException e)
+            {
+                throw new FormException("Unknown overflow policy.", PARAMETERNAME_DISPATCHER_OVERFLOW_POLICY);
+            }
+        } else {
+            this.dispatcherOverflowPolicy = IMOverflowPolicy.DISCARD_OLDEST;
+        }
+    }
+
+    /**
+     * Sets how long unused IM sessions are kept open, and does some validation.
+     * @param req The form request
+     * @throws FormException
+     */
+    private void applyImSessionIdleTimeout(final HttpServletRequest req) throws FormException
+    {
+        this.imSessionIdleTimeout = parsePositiveInt(req, PARAMETERNAME_IM_SESSION_IDLE_TIMEOUT, DEFAULT_IM_SESSION_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Sets how long resolved and unresolvable user names are remembered, and does some validation.
+     * @param req The form request
+     * @throws FormException
+     */
+    private void applyResolutionTtls(final HttpServletRequest req) throws FormException
+    {
+        this.resolutionTtl = parsePositiveInt(req, PARAMETERNAME_RESOLUTION_TTL, DEFAULT_RESOLUTION_TTL);
+        this.negativeResolutionTtl = parsePositiveInt(req, PARAMETERNAME_NEGATIVE_RESOLUTION_TTL, DEFAULT_NEGATIVE_RESOLUTION_TTL);
+    }
+
+    /**
+     * Parses a positive number from the form, falling back to a default if it is empty.
+     * @param req The form request
+     * @param name The name of the parameter
+     * @param defaultValue The value to use if the parameter is empty
+     * @return The number
+     * @throws FormException
+     */
+    private static int parsePositiveInt(final HttpServletRequest req, final String name, final int defaultValue) throws FormException
+    {
+        return parseInt(req, name, defaultValue, 1);
+    }
+
+    /**
+     * Parses a number from the form, falling back to a default if it is empty.
+     * @param req The form request
+     * @param name The name of the parameter
+     * @param defaultValue The value to use if the parameter is empty
+     * @param min The smallest allowed value
+     * @return The number
+     * @throws FormException
+     */
+    private static int parseInt(final HttpServletRequest req, final String name, final int defaultValue, final int min) throws FormException
+    {
+        final String p = Util.fixEmptyAndTrim(req.getParameter(name));
+        if (p == null)
+        {
+            return defaultValue;
+        }
+        try
+        {
+            final int i = Integer.parseInt(p);
+            if (i < min)
+            {
+                throw new FormException("Value must be at least " + min + ".", name);
+            }
+            return i;
+        }
+        catch (final NumberFormatException e)
+        {
+            throw new FormException("Value cannot be parsed.", name);
+        }
+    }
+
     /**
      * This human readable name is used in the configuration screen.
      */
@@ -233,7 +464,7 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
      * @return The text.
      */
     public String getPortString() {
-        if(port==5222)  return null;
+        if(port==DEFAULT_PORT)  return null;
         else            return String.valueOf(port);
     }
 
@@ -308,12 +539,24 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
     }
 
     /**
-     * Shuts down the connection etc.
+     * Shuts down the connection etc. Queued notifications are sent first, for up to the shutdown timeout;
+     * the rest stays in the outbox, and only then the session is logged out.
      */
     public void shutdown()
     {
         final SametimeIMConnectionProvider factory = SametimeIMConnectionProvider.getInstance();
-        factory.releaseConnection();
+        // builds finishing from now on must not start a new dispatcher or connection
+        factory.stop();
+        factory.drainDispatcher(TimeUnit.SECONDS.toMillis(this.shutdownTimeout));
+        // after the drain, which may still keep notifications for recipients who are away, and while they can be journaled
+        factory.stopPresence();
+        // before anything else is stopped, so that notifications failed by it stay in the outbox
+        factory.stopOutbox();
+        factory.stopRateLimiter();
+        factory.stopCircuitBreaker();
+        factory.stopCommands();
+        factory.disconnect();
+        factory.stopResolutionStore();
     }
 
 	/* (non-Javadoc)
@@ -329,16 +572,13 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
         applyNickname(req);
         applyPassword(req);
         applyInitialGroupChats(req);
+        applyAdditionalAccounts(req);
         applyCommandPrefix(req);
+        applyDispatcher(req);
+        applyImSessionIdleTimeout(req);
+        applyResolutionTtls(req);
 
-        try
-        {
-            SametimeIMConnectionProvider.getInstance().createConnection(this);
-        }
-        catch (final Exception e)
-        {
-            throw new FormException("Unable to create Client: " + e, null);
-        }
+        SametimeIMConnectionProvider.getInstance().connect(this);
         save();
         return super.configure(req, formData);
 	}
@@ -353,10 +593,12 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
     public FormValidation doServerCheck(@QueryParameter final String value) {
         String v = Util.fixEmptyAndTrim(value);
         if (v != null) {
-            try {
-                InetAddress.getByName(v);
-            } catch (UnknownHostException e) {
-                return FormValidation.error("Unknown host "+v);
+            for (String server : split(v, SERVER_SEPARATORS)) {
+                try {
+                    InetAddress.getByName(server);
+                } catch (UnknownHostException e) {
+                    return FormValidation.error("Unknown host "+server);
+                }
             }
         }
         return FormValidation.ok();
@@ -382,6 +624,35 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
         return hostname;
     }
 
+    /**
+     * The community servers to choose from, split from the hostname field.
+     *
+     * @return The server names, in order of preference; empty if none is configured.
+     */
+    List<String> getServers()
+    {
+        return hostname != null ? split(hostname, SERVER_SEPARATORS) : new ArrayList<String>();
+    }
+
+    /**
+     * Splits a configured list into its non-empty items.
+     * @param list The list as configured
+     * @param separators A regular expression matching what separates the items
+     * @return The items, in configured order
+     */
+    private static List<String> split(final String list, final String separators)
+    {
+        final List<String> result = new ArrayList<String>();
+        for (final String item : list.split(separators))
+        {
+            if (item.length() > 0)
+            {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
     /**
      * Getter method for the hudsonNickname field.
      *
@@ -401,4 +672,184 @@ public class SametimePublisherDescriptor extends BuildStepDescriptor<Publisher>
     {
         return hudsonPassword;
     }
-}
\ No newline at end of file
+
+    /**
+     * The IDs of the further bot logins, for the configuration screen. Their passwords are not shown.
+     *
+     * @return The Sametime IDs, in configuration order.
+     */
+    public List<String> getAdditionalAccountIds()
+    {
+        final List<String> ids = new ArrayList<String>();
+        for (final SametimeAccount account : additionalAccounts)
+        {
+            ids.add(account.getNickname());
+        }
+        return ids;
+    }
+
+    /**
+     * Get the group chats to be in all the time.
+     *
+     * @return The names of the Sametime places, without the leading '*' targets use for them.
+     */
+    List<String> getInitialGroupChatNames()
+    {
+        final List<String> names = new ArrayList<String>();
+        if (initialGroupChats != null)
+        {
+            for (final String name : split(initialGroupChats, GROUP_CHAT_SEPARATORS))
+            {
+                final String place = name.startsWith("*") ? name.substring(1) : name;
+                if (place.length() > 0)
+                {
+                    names.add(place);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * All bot logins, the main one first.
+     *
+     * @return The accounts to log in with.
+     */
+    List<SametimeAccount> getAccounts()
+    {
+        final List<SametimeAccount> accounts = new ArrayList<SametimeAccount>();
+        accounts.add(new SametimeAccount(hudsonNickname, Secret.fromString(hudsonPassword)));
+        accounts.addAll(additionalAccounts);
+        return accounts;
+    }
+
+    /**
+     * Getter method for the dispatcherThreads field.
+     *
+     * @return The number of threads sending notifications.
+     */
+    public int getDispatcherThreads()
+    {
+        return dispatcherThreads;
+    }
+
+    /**
+     * Getter method for the dispatcherQueueCapacity field.
+     *
+     * @return The number of notification jobs that may be waiting to be sent.
+     */
+    public int getDispatcherQueueCapacity()
+    {
+        return dispatcherQueueCapacity;
+    }
+
+    /**
+     * Getter method for the dispatcherOverflowPolicy field.
+     *
+     * @return What to do when the notification queue is full.
+     */
+    public IMOverflowPolicy getDispatcherOverflowPolicy()
+    {
+        return dispatcherOverflowPolicy;
+    }
+
+    /**
+     * All overflow policies, for the configuration screen.
+     *
+     * @return The overflow policies.
+     */
+    public IMOverflowPolicy[] getDispatcherOverflowPolicies()
+    {
+        return IMOverflowPolicy.values();
+    }
+
+    /**
+     * Getter method for the fanOutConcurrency field.
+     *
+     * @return How many notifications of one build may be in flight at the same time.
+     */
+    public int getFanOutConcurrency()
+    {
+        return fanOutConcurrency;
+    }
+
+    /**
+     * Getter method for the digestWindow field.
+     *
+     * @return How long, in seconds, notifications to one recipient are collected into a digest.
+     */
+    public int getDigestWindow()
+    {
+        return digestWindow;
+    }
+
+    /**
+     * Getter method for the rateLimit field.
+     *
+     * @return How many messages per minute may be sent over all logins together, 0 for no limit.
+     */
+    public int getRateLimit()
+    {
+        return rateLimit;
+    }
+
+    /**
+     * Getter method for the recipientRateLimit field.
+     *
+     * @return How many messages per minute may be sent to the same recipient, 0 for no limit.
+     */
+    public int getRecipientRateLimit()
+    {
+        return recipientRateLimit;
+    }
+
+    /**
+     * Getter method for the shutdownTimeout field.
+     *
+     * @return How long, in seconds, queued notifications may take to be sent when Jenkins shuts down.
+     */
+    public int getShutdownTimeout()
+    {
+        return shutdownTimeout;
+    }
+
+    /**
+     * Getter method for the bulkThreshold field.
+     *
+     * @return The number of recipients above which a notification goes out as one announcement, 0 for never.
+     */
+    public int getBulkThreshold()
+    {
+        return bulkThreshold;
+    }
+
+    /**
+     * Getter method for the imSessionIdleTimeout field.
+     *
+     * @return How long, in seconds, an unused IM session is kept open.
+     */
+    public int getImSessionIdleTimeout()
+    {
+        return imSessionIdleTimeout;
+    }
+
+    /**
+     * Getter method for the resolutionTtl field.
+     *
+     * @return How long, in seconds, a resolved user name is remembered.
+     */
+    public int getResolutionTtl()
+    {
+        return resolutionTtl;
+    }
+
+    /**
+     * Getter method for the negativeResolutionTtl field.
+     *
+     * @return How long, in seconds, a user name that could not be resolved is remembered.
+     */
+    public int getNegativeResolutionTtl()
+    {
+        return negativeResolutionTtl;
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers what user names resolved to, so the lookup service is not asked again for every notification.
+ * Names that could not be resolved are remembered too, but for a shorter time, so that a typo in a job's
+ * configuration does not cause a directory lookup per build while a new user is found soon after being added.
+ * The cache holds a bounded number of names and forgets the least recently used one first.
+ * Names loaded from a previous run are marked unverified until they have been looked up again.
+ */
+class SametimeResolutionCache
+{
+    private final int maxEntries;
+    private volatile long positiveTtlMillis;
+    private volatile long negativeTtlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long modifications;
+    private final Map<String, Resolution> entries;
+
+    /**
+     * Constructor.
+     * @param maxEntries The maximum number of names to remember
+     * @param positiveTtlSeconds How long a resolved name is remembered
+     * @param negativeTtlSeconds How long a name that could not be resolved is remembered
+     */
+    SametimeResolutionCache(final int maxEntries, final int positiveTtlSeconds, final int negativeTtlSeconds)
+    {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Resolution>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Resolution> eldest)
+            {
+                return size() > SametimeResolutionCache.this.maxEntries;
+            }
+        };
+        setTtls(positiveTtlSeconds, negativeTtlSeconds);
+    }
+
+    /**
+     * Changes how long names are remembered. Entries already cached keep their expiry.
+     * @param positiveTtlSeconds How long a resolved name is remembered
+     * @param negativeTtlSeconds How long a name that could not be resolved is remembered
+     */
+    void setTtls(final int positiveTtlSeconds, final int negativeTtlSeconds)
+    {
+        this.positiveTtlMillis = TimeUnit.SECONDS.toMillis(positiveTtlSeconds);
+        this.negativeTtlMillis = TimeUnit.SECONDS.toMillis(negativeTtlSeconds);
+    }
+
+    /**
+     * Looks up a name.
+     * @param name The user name
+     * @return What the name resolved to, or <code>null</code> if it is not cached or has expired
+     */
+    synchronized Resolution get(final String name)
+    {
+        final Resolution resolution = this.entries.get(name);
+        if (resolution == null || resolution.isExpired())
+        {
+            if (resolution != null)
+            {
+                this.entries.remove(name);
+            }
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return resolution;
+    }
+
+    /**
+     * Remembers that a name was resolved.
+     * @param name The user name
+     * @param target The resolved target
+     */
+    synchronized void putResolved(final String name, final SametimeIMMessageTarget target)
+    {
+        this.entries.put(name, new Resolution(target, System.currentTimeMillis() + this.positiveTtlMillis, true));
+        this.modifications++;
+    }
+
+    /**
+     * Remembers a resolution from a previous run, unless the name has been resolved since.
+     * @param name The user name
+     * @param target The target it resolved to back then
+     */
+    synchronized void putLoaded(final String name, final SametimeIMMessageTarget target)
+    {
+        if (!this.entries.containsKey(name))
+        {
+            this.entries.put(name, new Resolution(target, System.currentTimeMillis() + this.positiveTtlMillis, false));
+        }
+    }
+
+    /**
+     * Remembers that a name could not be resolved.
+     * @param name The user name
+     */
+    synchronized void putUnresolved(final String name)
+    {
+        final Resolution old = this.entries.put(name, new Resolution(null, System.currentTimeMillis() + this.negativeTtlMillis, true));
+        if (old != null && old.getTarget() != null)
+        {
+            this.modifications++;
+        }
+    }
+
+    /**
+     * Returns the names loaded from a previous run that have not been looked up again yet, and marks them as being verified.
+     * @return The names
+     */
+    synchronized List<String> takeUnverifiedNames()
+    {
+        final List<String> names = new ArrayList<String>();
+        for (final Map.Entry<String, Resolution> entry : this.entries.entrySet())
+        {
+            if (!entry.getValue().isVerified())
+            {
+                names.add(entry.getKey());
+                entry.getValue().verified = true;
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return A copy of all names that are currently resolved
+     */
+    synchronized Map<String, SametimeIMMessageTarget> getResolved()
+    {
+        final Map<String, SametimeIMMessageTarget> resolved = new LinkedHashMap<String, SametimeIMMessageTarget>();
+        for (final Map.Entry<String, Resolution> entry : this.entries.entrySet())
+        {
+            if (entry.getValue().getTarget() != null && !entry.getValue().isExpired())
+            {
+                resolved.put(entry.getKey(), entry.getValue().getTarget());
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * @return A number that changes whenever a resolved name is added or removed
+     */
+    synchronized long getModifications()
+    {
+        return this.modifications;
+    }
+
+    /**
+     * Forgets everything.
+     */
+    synchronized void clear()
+    {
+        this.entries.clear();
+    }
+
+    synchronized int size()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * @return The number of lookups answered from the cache
+     */
+    long getHits()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * @return The number of lookups that had to go to the lookup service
+     */
+    long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return size() + " names cached, " + getHits() + " hits, " + getMisses() + " misses";
+    }
+
+    /**
+     * What one name resolved to.
+     */
+    static class Resolution
+    {
+        private final SametimeIMMessageTarget target;
+        private final long expiresAt;
+        private boolean verified;
+
+        Resolution(final SametimeIMMessageTarget target, final long expiresAt, final boolean verified)
+        {
+            this.target = target;
+            this.expiresAt = expiresAt;
+            this.verified = verified;
+        }
+
+        /**
+         * @return The resolved target, or <code>null</code> if the name could not be resolved
+         */
+        SametimeIMMessageTarget getTarget()
+        {
+            return this.target;
+        }
+
+        /**
+         * @return <code>false</code> if this was loaded from a previous run and has not been looked up again
+         */
+        boolean isVerified()
+        {
+            return this.verified;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() >= this.expiresAt;
+        }
+    }
+}
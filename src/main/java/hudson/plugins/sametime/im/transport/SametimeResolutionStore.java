@@ -0,0 +1,178 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.lotus.sametime.core.types.STId;
+import com.lotus.sametime.core.types.STUser;
+
+/**
+ * Keeps a copy of the resolved user names on disk, so that after a restart publishers can use them
+ * right away instead of each waiting for the lookup service. Names loaded from disk are marked as
+ * unverified in the cache and looked up again in the background once a connection is logged in.
+ */
+class SametimeResolutionStore
+{
+    /** How often changes to the cache are written to disk, in seconds */
+    static final int SAVE_INTERVAL = 300;
+
+    private static final int MAGIC = 0x53545243; // "STRC"
+    private static final int VERSION = 1;
+    private static final Logger log = Logger.getLogger(SametimeResolutionStore.class.getName());
+
+    private final File file;
+    private final SametimeResolutionCache cache;
+    private final ScheduledExecutorService saver;
+    private long savedModifications = -1;
+
+    /**
+     * Constructor.
+     * @param file Where to keep the resolutions
+     * @param cache The cache to fill and to save
+     */
+    SametimeResolutionStore(final File file, final SametimeResolutionCache cache)
+    {
+        this.file = file;
+        this.cache = cache;
+        this.saver = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Sametime resolution store"));
+    }
+
+    /**
+     * Loads the saved resolutions into the cache and starts saving changes periodically.
+     */
+    void start()
+    {
+        load();
+        this.saver.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                save();
+            }
+        }, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops saving periodically, and saves one last time.
+     */
+    void stop()
+    {
+        this.saver.shutdownNow();
+        save();
+    }
+
+    private void load()
+    {
+        if (!this.file.exists())
+        {
+            return;
+        }
+        DataInputStream in = null;
+        int count = 0;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                log.warning("Ignoring " + this.file + ", it was not written by this version of the plugin.");
+                return;
+            }
+            final int size = in.readInt();
+            for (; count < size; count++)
+            {
+                final String name = in.readUTF();
+                final STId id = new STId(in.readUTF(), in.readUTF());
+                final STUser user = new STUser(id, in.readUTF(), in.readUTF());
+                this.cache.putLoaded(name, new SametimeIMMessageTarget(user, name));
+            }
+            log.info("Loaded " + count + " resolved Sametime users from " + this.file);
+        }
+        catch (final IOException e)
+        {
+            log.log(Level.WARNING, "Could not read " + this.file + ", loaded " + count + " resolved users.", e);
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    private synchronized void save()
+    {
+        final long modifications = this.cache.getModifications();
+        if (modifications == this.savedModifications)
+        {
+            return;
+        }
+        final Map<String, SametimeIMMessageTarget> resolved = this.cache.getResolved();
+        final File tmp = new File(this.file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(resolved.size());
+            for (final Map.Entry<String, SametimeIMMessageTarget> entry : resolved.entrySet())
+            {
+                final STUser user = entry.getValue().getUser();
+                out.writeUTF(entry.getKey());
+                out.writeUTF(nonNull(user.getId().getId()));
+                out.writeUTF(nonNull(user.getId().getCommunityName()));
+                out.writeUTF(nonNull(user.getName()));
+                out.writeUTF(nonNull(user.getDesc()));
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(this.file) && !(this.file.delete() && tmp.renameTo(this.file)))
+            {
+                throw new IOException("Could not rename " + tmp + " to " + this.file);
+            }
+            this.savedModifications = modifications;
+        }
+        catch (final IOException e)
+        {
+            log.log(Level.WARNING, "Could not save resolved Sametime users to " + this.file, e);
+        }
+        finally
+        {
+            close(out);
+        }
+    }
+
+    private static String nonNull(final String s)
+    {
+        return s != null ? s : "";
+    }
+
+    private static void close(final java.io.Closeable c)
+    {
+        if (c != null)
+        {
+            try
+            {
+                c.close();
+            }
+            catch (final IOException e)
+            {
+                log.log(Level.FINE, "IOException caught!", e);
+            }
+        }
+    }
+}
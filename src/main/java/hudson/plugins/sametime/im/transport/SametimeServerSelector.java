@@ -0,0 +1,197 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import hudson.plugins.sametime.tools.Assert;
+import hudson.plugins.sametime.tools.NamedThreadFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses which of the configured community servers to log in to. The servers are probed with a TCP
+ * connect to the configured port at startup and periodically, on the probe's own thread; logins go to the
+ * fastest healthy one.
+ * A server whose login was lost counts as unhealthy until a probe succeeds again, so the next
+ * attempt fails over to another one.
+ */
+class SametimeServerSelector
+{
+    /** How long a probe may take before the server counts as down, in milliseconds */
+    static final int PROBE_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(5);
+    /** How often the servers are probed, in seconds */
+    static final long PROBE_INTERVAL = 300;
+
+    private static final Logger log = Logger.getLogger(SametimeServerSelector.class.getName());
+
+    private final List<String> servers;
+    private final int port;
+    private final Map<String, Long> latencies = new HashMap<String, Long>();
+    private final ScheduledExecutorService prober;
+    private final CountDownLatch firstProbe = new CountDownLatch(1);
+
+    /**
+     * Constructor.
+     * @param servers The server names, in order of preference
+     * @param port The port to probe
+     */
+    SametimeServerSelector(final List<String> servers, final int port)
+    {
+        Assert.isNotNull(servers, "Parameter 'servers' must not be null.");
+        if (servers.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one server is needed.");
+        }
+        this.servers = new ArrayList<String>(servers);
+        this.port = port;
+        this.prober = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Sametime server probe"));
+    }
+
+    /**
+     * Starts probing the servers, if there is more than one to choose from.
+     */
+    void start()
+    {
+        if (this.servers.size() > 1)
+        {
+            this.prober.scheduleWithFixedDelay(new Runnable() {
+                public void run()
+                {
+                    probeAll();
+                }
+            }, 0, PROBE_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops probing.
+     */
+    void stop()
+    {
+        this.prober.shutdownNow();
+    }
+
+    /**
+     * Picks the server for the next login: the fastest one that answered the last probe and has not failed since.
+     * If none is known to be healthy, the servers are tried in turn, starting after the one that failed last.
+     * The first call waits for the first probe for up to {@link #PROBE_TIMEOUT}, so that the first login does
+     * not go to a dead server; the probe runs on its own thread, other callers are not held up meanwhile.
+     * @param failed The server the last login failed on, or <code>null</code>
+     * @return The server to log in to
+     */
+    String select(final String failed)
+    {
+        if (this.servers.size() == 1)
+        {
+            return this.servers.get(0);
+        }
+        try
+        {
+            this.firstProbe.await(PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this)
+        {
+            if (failed != null)
+            {
+                this.latencies.remove(failed);
+            }
+            String fastest = null;
+            for (final String server : this.servers)
+            {
+                final Long latency = this.latencies.get(server);
+                if (latency != null && (fastest == null || latency < this.latencies.get(fastest)))
+                {
+                    fastest = server;
+                }
+            }
+            if (fastest != null)
+            {
+                return fastest;
+            }
+            final int index = failed != null ? this.servers.indexOf(failed) : -1;
+            return this.servers.get((index + 1) % this.servers.size());
+        }
+    }
+
+    /**
+     * Get the names of the servers.
+     * @return The servers, in order of preference
+     */
+    List<String> getServers()
+    {
+        return this.servers;
+    }
+
+    /**
+     * Measures how long each server takes to accept a connection.
+     */
+    private void probeAll()
+    {
+        final Map<String, Long> results = new HashMap<String, Long>();
+        for (final String server : this.servers)
+        {
+            final long latency = probe(server);
+            if (latency >= 0)
+            {
+                results.put(server, latency);
+            }
+        }
+        synchronized (this)
+        {
+            this.latencies.clear();
+            this.latencies.putAll(results);
+        }
+        this.firstProbe.countDown();
+        log.fine("Sametime server latencies (ms): " + results);
+        if (results.isEmpty())
+        {
+            log.warning("None of the Sametime servers " + this.servers + " answered.");
+        }
+    }
+
+    /**
+     * @return The time it took to connect, in milliseconds, or -1 if the server did not answer
+     */
+    private long probe(final String server)
+    {
+        final Socket socket = new Socket();
+        final long start = System.nanoTime();
+        try
+        {
+            socket.connect(new InetSocketAddress(server, this.port), PROBE_TIMEOUT);
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+        catch (final IOException e)
+        {
+            log.log(Level.FINE, "Sametime server " + server + " did not answer.", e);
+            return -1;
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (final IOException e)
+            {
+                // nothing to do
+            }
+        }
+    }
+}
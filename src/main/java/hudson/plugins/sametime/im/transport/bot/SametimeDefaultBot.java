@@ -3,24 +3,45 @@
  */
 package hudson.plugins.sametime.im.transport.bot;
 
+import hudson.plugins.sametime.im.IMCommandEngine;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.lotus.sametime.im.Im;
 import com.lotus.sametime.im.ImEvent;
 import com.lotus.sametime.im.ImListener;
 
 /**
- * This is a default bot that simply ignores Im opening, closing and failing, but responds to the reception of messages with a standard brush-off response.
+ * This is a default bot that simply ignores Im opening, closing and failing, but hands the commands it receives
+ * to an IMCommandEngine, which answers them later on its own threads. Other text is ignored.
  * @author Jamie Burrell
  * @since 16 Jan 2008
  * @version 1.0
  */
 public class SametimeDefaultBot implements ImListener
 {
-    public static final String DEFAULT_MESSAGE = "Sorry, but I am a bot, and don't respond to input.";
-
     private static final Logger log = Logger.getLogger(SametimeDefaultBot.class.getName());
 
+    private final IMCommandEngine commands;
+
+    /**
+     * Constructor for a bot that does not answer.
+     */
+    public SametimeDefaultBot()
+    {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     * @param commands Answers the commands received, may be null
+     */
+    public SametimeDefaultBot(IMCommandEngine commands)
+    {
+        this.commands = commands;
+    }
+
     /* (non-Javadoc)
      * @see com.lotus.sametime.im.ImListener#dataReceived(com.lotus.sametime.im.ImEvent)
      */
@@ -60,8 +81,19 @@ public class SametimeDefaultBot implements ImListener
      */
     public void textReceived(ImEvent ie)
     {
-    	log.info("FIXME Handle WHAT text is recieved. In Sametime Connect 7.5.1 sends default message with notifications.");
-        ie.getIm().sendText(true, DEFAULT_MESSAGE);
+        // Sametime Connect may answer notifications with automatic messages, those are no commands
+        final Im im = ie.getIm();
+        final boolean command = commands != null
+                && commands.handle(im.getPartner().getId().getId(), ie.getText(), new IMCommandEngine.Reply() {
+                    public void send(String text)
+                    {
+                        im.sendText(true, text);
+                    }
+                });
+        if (!command)
+        {
+            log.fine("Ignoring text from " + im.getPartner().getName() + ": " + ie.getText());
+        }
     }
 
 }
@@ -3,48 +3,149 @@
  */
 package hudson.plugins.sametime.im.transport.bot;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import hudson.plugins.sametime.im.IMCommandEngine;
+import hudson.plugins.sametime.im.IMDelivery;
 
+import java.util.LinkedList;
+import java.util.List;
+
+import com.lotus.sametime.im.Im;
 import com.lotus.sametime.im.ImEvent;
 
 /**
- * Standard bot that just sends out a message when it is connected.
+ * Standard bot that sends out notifications over one Im, which is kept open so that
+ * further notifications to the same partner can reuse it. Messages sent before the
+ * Im is opened are held back and delivered as soon as it is. Each message's IMDelivery
+ * is completed from the Im's events, so nothing here blocks the toolkit's event thread.
  * @author Jamie Burrell
  * @since 16 Jan 2008
  * @version 1.0
  */
 public class SametimeNotificationBot extends SametimeDefaultBot
 {
-    private static final Logger log = Logger.getLogger(SametimeNotificationBot.class.getName());
-    private final String notificationMessage;
+    private final Im im;
+    private final List<IMDelivery> pendingMessages = new LinkedList<IMDelivery>();
+    private boolean opened;
+    private boolean closed;
+    private long lastUsed = System.currentTimeMillis();
 
     /**
      * Constructor.
-     * @param notificationMessage
+     * @param im The Im to send over, not yet opened
+     * @param commands Answers the commands the partner sends back, may be null
+     */
+    public SametimeNotificationBot(Im im, IMCommandEngine commands)
+    {
+        super(commands);
+        this.im = im;
+    }
+
+    /**
+     * Sends a message over the Im, or holds it back until the Im is opened.
+     * @param delivery The notification to send, completed once it has been handed to the Im
+     * @return <code>false</code> if the Im has been closed and the message was not accepted
+     */
+    public synchronized boolean send(IMDelivery delivery)
+    {
+        if (closed)
+        {
+            return false;
+        }
+        lastUsed = System.currentTimeMillis();
+        if (opened)
+        {
+            sendText(delivery);
+        }
+        else
+        {
+            pendingMessages.add(delivery);
+        }
+        return true;
+    }
+
+    /**
+     * Whether the Im can be closed because it has not been used for a while and no messages are waiting for it.
+     * @param idleSince The time, in milliseconds since the epoch, after which the Im counts as used
+     * @return <code>true</code> or <code>false</code>
+     */
+    public synchronized boolean isIdle(long idleSince)
+    {
+        return closed || (pendingMessages.isEmpty() && lastUsed <= idleSince);
+    }
+
+    /**
+     * Closes the Im. Messages that are still waiting for it to open fail.
      */
-    public SametimeNotificationBot(String notificationMessage)
+    public void close()
     {
-        super();
-        this.notificationMessage = notificationMessage;
+        synchronized (this)
+        {
+            failPending("the IM session was closed before it opened");
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+        }
+        im.close(0);
+    }
+
+    /**
+     * Whether the Im has been closed, either by us or by the partner.
+     * @return <code>true</code> or <code>false</code>
+     */
+    public synchronized boolean isClosed()
+    {
+        return closed;
     }
 
     /* (non-Javadoc)
      * @see hudson.plugins.sametime.im.transport.bot.SametimeDefaultBot#imOpened(com.lotus.sametime.im.ImEvent)
      */
     @Override
-    public void imOpened(ImEvent ie)
+    public synchronized void imOpened(ImEvent ie)
     {
-    	ie.getIm().sendText(true, notificationMessage);
-        // give it time to arrive
-        try
+        opened = true;
+        for (IMDelivery delivery : pendingMessages)
         {
-            wait(500);
+            sendText(delivery);
         }
-        catch (InterruptedException e)
+        pendingMessages.clear();
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.transport.bot.SametimeDefaultBot#openImFailed(com.lotus.sametime.im.ImEvent)
+     */
+    @Override
+    public synchronized void openImFailed(ImEvent ie)
+    {
+        super.openImFailed(ie);
+        closed = true;
+        failPending("could not open IM session, error code " + ie.getReason());
+    }
+
+    /* (non-Javadoc)
+     * @see hudson.plugins.sametime.im.transport.bot.SametimeDefaultBot#imClosed(com.lotus.sametime.im.ImEvent)
+     */
+    @Override
+    public synchronized void imClosed(ImEvent ie)
+    {
+        closed = true;
+        failPending("the IM session was closed by the partner");
+    }
+
+    private void sendText(IMDelivery delivery)
+    {
+        im.sendText(true, delivery.getNotification().getText());
+        delivery.succeed();
+    }
+
+    private void failPending(String reason)
+    {
+        for (IMDelivery delivery : pendingMessages)
         {
-            log.log(Level.SEVERE, "InterruptedException caught!", e);
+            delivery.fail(reason);
         }
-        ie.getIm().close(0);
+        pendingMessages.clear();
     }
 }
@@ -0,0 +1,34 @@
+package hudson.plugins.sametime.tools;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with a common, numbered name so the plugin's background
+ * threads are easy to recognise in thread dumps and never keep the JVM alive.
+ */
+public class NamedThreadFactory implements ThreadFactory
+{
+    private final String prefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Constructor.
+     * @param prefix the name shared by all threads of this factory
+     */
+    public NamedThreadFactory(final String prefix)
+    {
+        Assert.isNotNull(prefix, "Parameter 'prefix' must not be null.");
+        this.prefix = prefix;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Thread newThread(final Runnable r)
+    {
+        final Thread t = new Thread(r, this.prefix + " #" + this.counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,276 @@
+package hudson.plugins.sametime.im;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the state transitions of the breaker, with timings short enough to wait for.
+ */
+public class IMCircuitBreakerTest
+{
+    private static final long OPEN_DURATION = 200;
+    private static final long SEND_TIMEOUT = 300;
+
+    private final IMCircuitBreaker breaker = new IMCircuitBreaker("circuit breaker test", OPEN_DURATION, SEND_TIMEOUT);
+    private final BlockingQueue<IMCircuitBreaker.State> changes = new LinkedBlockingQueue<IMCircuitBreaker.State>();
+    private final ScriptedConnection server = new ScriptedConnection();
+    private IMConnection guarded;
+
+    /**
+     * Answers every send, or throws, or never answers, or buffers the sends as if reconnecting.
+     */
+    private static class ScriptedConnection implements IMConnection
+    {
+        private volatile boolean failing;
+        private volatile boolean silent;
+        private volatile boolean buffering;
+        private volatile IMDelivery last;
+
+        public IMDelivery send(final IMNotification notification) throws IMException
+        {
+            if (this.failing)
+            {
+                throw new IMException(new IllegalStateException("server gone"));
+            }
+            final IMDelivery delivery = new IMDelivery(notification);
+            this.last = delivery;
+            if (this.buffering)
+            {
+                delivery.setBuffered(true);
+            }
+            else if (!this.silent)
+            {
+                delivery.succeed();
+            }
+            return delivery;
+        }
+
+        public void setPresence(final IMPresence presence)
+        {
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        this.breaker.addListener(new IMCircuitBreaker.Listener() {
+            public void stateChanged(final IMCircuitBreaker.State state)
+            {
+                IMCircuitBreakerTest.this.changes.add(state);
+            }
+        });
+        this.guarded = this.breaker.through(this.server);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.breaker.shutdown();
+    }
+
+    @Test
+    public void opensAfterFailuresInARow() throws Exception
+    {
+        this.server.failing = true;
+        for (int i = 0; i < IMCircuitBreaker.FAILURE_THRESHOLD - 1; i++)
+        {
+            assertFalse(sendAndWait().isDelivered());
+        }
+        assertNull(this.changes.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(IMCircuitBreaker.State.CLOSED, this.breaker.getState());
+        assertTrue(this.breaker.tryAcquire());
+
+        sendAndWait();
+        assertEquals(IMCircuitBreaker.State.OPEN, nextChange());
+        assertFalse(this.breaker.tryAcquire());
+        assertEquals(1, this.breaker.getTripCount());
+    }
+
+    @Test
+    public void answeredSendStartsTheCountOver() throws Exception
+    {
+        this.server.failing = true;
+        for (int i = 0; i < IMCircuitBreaker.FAILURE_THRESHOLD - 1; i++)
+        {
+            sendAndWait();
+        }
+        this.server.failing = false;
+        assertTrue(sendAndWait().isDelivered());
+        this.server.failing = true;
+        for (int i = 0; i < IMCircuitBreaker.FAILURE_THRESHOLD - 1; i++)
+        {
+            sendAndWait();
+        }
+        assertNull(this.changes.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(IMCircuitBreaker.State.CLOSED, this.breaker.getState());
+    }
+
+    @Test
+    public void halfOpensAndClosesAfterAnAnsweredProbe() throws Exception
+    {
+        trip();
+        assertEquals(IMCircuitBreaker.State.HALF_OPEN, nextChange());
+        assertTrue("the probe", this.breaker.tryAcquire());
+        assertFalse("only one probe at a time", this.breaker.tryAcquire());
+
+        this.server.failing = false;
+        assertTrue(sendAndWait().isDelivered());
+        assertEquals(IMCircuitBreaker.State.CLOSED, nextChange());
+        assertTrue(this.breaker.tryAcquire());
+        assertTrue(this.breaker.tryAcquire());
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws Exception
+    {
+        trip();
+        assertEquals(IMCircuitBreaker.State.HALF_OPEN, nextChange());
+        assertTrue(this.breaker.tryAcquire());
+
+        assertFalse(sendAndWait().isDelivered());
+        assertEquals(IMCircuitBreaker.State.OPEN, nextChange());
+        assertEquals(2, this.breaker.getTripCount());
+        assertEquals(IMCircuitBreaker.State.HALF_OPEN, nextChange());
+    }
+
+    @Test
+    public void probeThatSendsNothingGivesWayAfterTheSendTimeout() throws Exception
+    {
+        trip();
+        assertEquals(IMCircuitBreaker.State.HALF_OPEN, nextChange());
+        assertTrue(this.breaker.tryAcquire());
+        assertFalse(this.breaker.tryAcquire());
+        Thread.sleep(SEND_TIMEOUT + 50);
+        assertTrue(this.breaker.tryAcquire());
+    }
+
+    @Test
+    public void unansweredSendTimesOutAndCounts() throws Exception
+    {
+        this.server.silent = true;
+        final IMDelivery delivery = this.guarded.send(notification());
+        assertTrue(delivery.await(5, TimeUnit.SECONDS));
+        assertFalse(delivery.isDelivered());
+        assertTrue(delivery.getFailureReason(), delivery.getFailureReason().startsWith("no answer from the IM server"));
+
+        for (int i = 1; i < IMCircuitBreaker.FAILURE_THRESHOLD; i++)
+        {
+            this.guarded.send(notification());
+        }
+        assertEquals(IMCircuitBreaker.State.OPEN, nextChange());
+    }
+
+    @Test
+    public void unansweredSendIsWithdrawnAndKept() throws Exception
+    {
+        this.server.silent = true;
+        final IMDelivery delivery = this.guarded.send(notification());
+        assertTrue(delivery.await(5, TimeUnit.SECONDS));
+        assertTrue("withdrawn from the transport's buffer", this.server.last.isWithdrawn());
+        final boolean[] released = new boolean[1];
+        delivery.whenReleased(new Runnable() {
+            public void run()
+            {
+                released[0] = true;
+            }
+        });
+        assertFalse("kept in the outbox", released[0]);
+    }
+
+    @Test
+    public void bufferedSendsNeitherTimeOutNorCount() throws Exception
+    {
+        this.server.buffering = true;
+        final List<IMDelivery> deliveries = new ArrayList<IMDelivery>();
+        final List<IMDelivery> buffered = new ArrayList<IMDelivery>();
+        for (int i = 0; i < IMCircuitBreaker.FAILURE_THRESHOLD; i++)
+        {
+            deliveries.add(sendAndWaitForTransport());
+            buffered.add(this.server.last);
+        }
+        assertNull(this.changes.poll(3 * SEND_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(IMCircuitBreaker.State.CLOSED, this.breaker.getState());
+
+        // logged in again, the buffer is flushed
+        for (int i = 0; i < buffered.size(); i++)
+        {
+            assertFalse(deliveries.get(i).isDone());
+            buffered.get(i).setBuffered(false);
+            buffered.get(i).succeed();
+            assertTrue(deliveries.get(i).isDelivered());
+        }
+    }
+
+    @Test
+    public void sendLeavingTheBufferGetsADeadlineAgain() throws Exception
+    {
+        this.server.buffering = true;
+        final IMDelivery delivery = sendAndWaitForTransport();
+        Thread.sleep(2 * SEND_TIMEOUT);
+        assertFalse(delivery.isDone());
+
+        this.server.last.setBuffered(false);
+        assertTrue(delivery.await(5, TimeUnit.SECONDS));
+        assertTrue(delivery.getFailureReason(), delivery.getFailureReason().startsWith("no answer from the IM server"));
+    }
+
+    private void trip() throws Exception
+    {
+        this.server.failing = true;
+        for (int i = 0; i < IMCircuitBreaker.FAILURE_THRESHOLD; i++)
+        {
+            sendAndWait();
+        }
+        assertEquals(IMCircuitBreaker.State.OPEN, nextChange());
+    }
+
+    /**
+     * Sends one notification, and gives the breaker a moment to count its outcome, which it does
+     * right after completing the delivery.
+     */
+    private IMDelivery sendAndWait() throws Exception
+    {
+        final IMDelivery delivery = this.guarded.send(notification());
+        assertTrue(delivery.await(5, TimeUnit.SECONDS));
+        Thread.sleep(20);
+        return delivery;
+    }
+
+    private IMDelivery sendAndWaitForTransport() throws Exception
+    {
+        final IMDelivery previous = this.server.last;
+        final IMDelivery delivery = this.guarded.send(notification());
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (this.server.last == previous && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+        return delivery;
+    }
+
+    private IMCircuitBreaker.State nextChange() throws InterruptedException
+    {
+        return this.changes.poll(5, TimeUnit.SECONDS);
+    }
+
+    private static IMNotification notification()
+    {
+        return new IMNotification(new DefaultIMMessageTarget("alice"), "job-a failed", "job-a");
+    }
+}
@@ -0,0 +1,128 @@
+package hudson.plugins.sametime.im;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests when digests are sent early and what they merge. The window is long enough never to end during a test.
+ */
+public class IMDigesterTest
+{
+    private final List<IMNotification> digests = new ArrayList<IMNotification>();
+    private final List<long[]> ids = new ArrayList<long[]>();
+    private final IMDigester digester = new IMDigester("digester test", TimeUnit.MINUTES.toMillis(10),
+            new IMDigester.Sink() {
+                public void flushed(final IMNotification digest, final long[] digestIds)
+                {
+                    synchronized (IMDigesterTest.this)
+                    {
+                        IMDigesterTest.this.digests.add(digest);
+                        IMDigesterTest.this.ids.add(digestIds);
+                    }
+                }
+            });
+
+    @After
+    public void tearDown()
+    {
+        this.digester.shutdown();
+    }
+
+    @Test
+    public void sendsEarlyOnceMaxMessagesAreCollected()
+    {
+        for (int i = 0; i < IMDigester.MAX_MESSAGES; i++)
+        {
+            this.digester.add(notification("alice", "job-" + i + " failed", "job-" + i), new long[] { i });
+        }
+        assertEquals(0, this.digests.size());
+        final IMNotification last = notification("alice", "one more", "job-x");
+        this.digester.add(last, new long[] { 99 });
+
+        assertEquals(1, this.digests.size());
+        assertTrue(this.digests.get(0).getText().startsWith(IMDigester.MAX_MESSAGES + " build notifications:"));
+        assertEquals(IMDigester.MAX_MESSAGES, this.ids.get(0).length);
+        assertEquals(1, this.digester.getPendingRecipients());
+
+        this.digester.shutdown();
+        assertEquals(2, this.digests.size());
+        assertSame(last, this.digests.get(1));
+        assertArrayEquals(new long[] { 99 }, this.ids.get(1));
+    }
+
+    @Test
+    public void sendsEarlyRatherThanGrowBeyondMaxChars()
+    {
+        final String text = text(IMDigester.MAX_CHARS / 3 + 1);
+        this.digester.add(notification("alice", text, "job-a"), new long[] { 1 });
+        this.digester.add(notification("alice", text, "job-b"), new long[] { 2 });
+        assertEquals(0, this.digests.size());
+        this.digester.add(notification("alice", text, "job-c"), new long[] { 3 });
+
+        assertEquals(1, this.digests.size());
+        assertTrue(this.digests.get(0).getText().startsWith("2 build notifications:"));
+        assertArrayEquals(new long[] { 1, 2 }, this.ids.get(0));
+    }
+
+    @Test
+    public void digestsEveryRecipientOnItsOwn()
+    {
+        this.digester.add(notification("alice", "job-a failed", "job-a"), new long[] { 1 });
+        this.digester.add(notification("bob", "job-a failed", "job-a"), new long[] { 2 });
+        this.digester.add(notification("alice", "job-b failed", "job-b"), new long[] { 3 });
+        assertEquals(2, this.digester.getPendingRecipients());
+
+        this.digester.shutdown();
+        assertEquals(2, this.digests.size());
+        for (int i = 0; i < 2; i++)
+        {
+            if (this.digests.get(i).getTarget().equals(new DefaultIMMessageTarget("alice")))
+            {
+                assertArrayEquals(new long[] { 1, 3 }, this.ids.get(i));
+            }
+            else
+            {
+                assertArrayEquals(new long[] { 2 }, this.ids.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void mergeKeepsTheMostUrgentPriorityAndAJobOfItsOwn()
+    {
+        final IMNotification started = new IMNotification(new DefaultIMMessageTarget("alice"), "job-a started", "job-a",
+                IMNotificationPriority.LOW);
+        final IMNotification failed = new IMNotification(new DefaultIMMessageTarget("alice"), "job-a failed", "job-a",
+                IMNotificationPriority.URGENT);
+        final IMNotification merged = IMDigester.merge(Arrays.asList(started, failed));
+        assertEquals("2 build notifications:\n- job-a started\n- job-a failed", merged.getText());
+        assertEquals(IMNotificationPriority.URGENT, merged.getPriority());
+        assertEquals("job-a", merged.getSource());
+        assertEquals(started.getCreatedAt(), merged.getCreatedAt());
+
+        final IMNotification other = notification("alice", "job-b failed", "job-b");
+        assertEquals(IMDigester.DIGEST_SOURCE, IMDigester.merge(Arrays.asList(started, other)).getSource());
+    }
+
+    private static IMNotification notification(final String to, final String text, final String source)
+    {
+        return new IMNotification(new DefaultIMMessageTarget(to), text, source);
+    }
+
+    private static String text(final int length)
+    {
+        final char[] text = new char[length];
+        Arrays.fill(text, 'x');
+        return new String(text);
+    }
+}
@@ -0,0 +1,88 @@
+package hudson.plugins.sametime.im;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests what the fan-out sends, and what it leaves to the caller once its time is up.
+ */
+public class IMFanOutTest
+{
+    /**
+     * Leaves the deliveries to some recipients pending.
+     */
+    private static class SlowConnection implements IMConnection
+    {
+        private final List<String> silentTo;
+        private final List<String> sent = new ArrayList<String>();
+
+        SlowConnection(final String... silentTo)
+        {
+            this.silentTo = Arrays.asList(silentTo);
+        }
+
+        public synchronized IMDelivery send(final IMNotification notification)
+        {
+            this.sent.add(notification.getTarget().toString());
+            final IMDelivery delivery = new IMDelivery(notification);
+            if (!this.silentTo.contains(notification.getTarget().toString()))
+            {
+                delivery.succeed();
+            }
+            return delivery;
+        }
+
+        public void setPresence(final IMPresence presence)
+        {
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    @Test
+    public void sendsToEveryTargetWithinTheLimit() throws Exception
+    {
+        final SlowConnection connection = new SlowConnection();
+        final List<IMDelivery> deliveries = new IMFanOut(2, 1000).send(connection,
+                notifications("alice", "bob", "carol"));
+        assertEquals(3, deliveries.size());
+        for (final IMDelivery delivery : deliveries)
+        {
+            assertTrue(delivery.isDelivered());
+        }
+        assertEquals(Arrays.asList("alice", "bob", "carol"), connection.sent);
+    }
+
+    @Test
+    public void leavesTargetsWithoutASlotToTheCaller() throws Exception
+    {
+        final SlowConnection connection = new SlowConnection("alice");
+        final List<IMNotification> notifications = notifications("alice", "bob", "carol");
+        final List<IMDelivery> deliveries = new IMFanOut(1, 200).send(connection, notifications);
+
+        assertEquals(1, deliveries.size());
+        assertSame(notifications.get(0), deliveries.get(0).getNotification());
+        assertFalse(deliveries.get(0).isDone());
+        assertEquals(Arrays.asList("alice"), connection.sent);
+    }
+
+    private static List<IMNotification> notifications(final String... targets)
+    {
+        final List<IMNotification> notifications = new ArrayList<IMNotification>();
+        for (final String target : targets)
+        {
+            notifications.add(new IMNotification(new DefaultIMMessageTarget(target), "job-a failed", "job-a"));
+        }
+        return notifications;
+    }
+}
@@ -0,0 +1,138 @@
+package hudson.plugins.sametime.im;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests which queued jobs give way when the queue is full, and which ones are superseded.
+ * One worker is kept busy with a first job while the others queue up behind it.
+ */
+public class IMNotificationDispatcherTest
+{
+    private final RecordingIMConnection connection = new RecordingIMConnection();
+    private final IMConnectionProvider provider = new IMConnectionProvider() {
+        public IMConnection currentConnection()
+        {
+            return IMNotificationDispatcherTest.this.connection;
+        }
+
+        public IMConnection awaitConnection(final long timeout, final TimeUnit unit)
+        {
+            return IMNotificationDispatcherTest.this.connection;
+        }
+
+        public void resolveTargets(final Collection<IMMessageTarget> targets)
+        {
+        }
+    };
+    private IMNotificationDispatcher dispatcher;
+
+    @After
+    public void tearDown()
+    {
+        this.connection.go();
+        if (this.dispatcher != null)
+        {
+            this.dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void discardOldestDropsTheOldestOfTheLeastUrgent() throws Exception
+    {
+        start(2, IMOverflowPolicy.DISCARD_OLDEST);
+        assertTrue(dispatch("bob", "job-b started", "job-b", IMNotificationPriority.LOW));
+        assertTrue(dispatch("carol", "job-c started", "job-c", IMNotificationPriority.LOW));
+        assertTrue(dispatch("dave", "job-d failed", "job-d", IMNotificationPriority.URGENT));
+        assertEquals(1, this.dispatcher.getDroppedCount());
+        // as urgent as the queued ones, so the older one gives way
+        assertTrue(dispatch("erin", "job-e started", "job-e", IMNotificationPriority.LOW));
+        assertEquals(2, this.dispatcher.getDroppedCount());
+        assertEquals(2, this.dispatcher.getQueueSize());
+
+        this.connection.go();
+        assertEquals("first", this.connection.next());
+        assertEquals("job-d failed", this.connection.next());
+        assertEquals("job-e started", this.connection.next());
+        assertNull(this.connection.next(200));
+    }
+
+    @Test
+    public void discardNewestOnlyGivesWayToMoreUrgentJobs() throws Exception
+    {
+        start(2, IMOverflowPolicy.DISCARD_NEWEST);
+        assertTrue(dispatch("bob", "job-b fixed", "job-b", IMNotificationPriority.NORMAL));
+        assertTrue(dispatch("carol", "job-c fixed", "job-c", IMNotificationPriority.NORMAL));
+        assertFalse(dispatch("dave", "job-d fixed", "job-d", IMNotificationPriority.NORMAL));
+        assertFalse(dispatch("erin", "job-e started", "job-e", IMNotificationPriority.LOW));
+        assertEquals(2, this.dispatcher.getDroppedCount());
+        assertTrue(dispatch("frank", "job-f failed", "job-f", IMNotificationPriority.URGENT));
+        assertEquals(3, this.dispatcher.getDroppedCount());
+
+        this.connection.go();
+        assertEquals("first", this.connection.next());
+        assertEquals("job-f failed", this.connection.next());
+        assertEquals("job-c fixed", this.connection.next());
+        assertNull(this.connection.next(200));
+    }
+
+    @Test
+    public void newerStartMessageSupersedesTheQueuedOneForTheSameTargets() throws Exception
+    {
+        start(10, IMOverflowPolicy.DISCARD_NEWEST);
+        assertTrue(dispatch("alice", "job-a #1 started", "job-a", IMNotificationPriority.LOW));
+        assertTrue(dispatch("bob", "job-a #1 started for bob", "job-a", IMNotificationPriority.LOW));
+        assertTrue(dispatch("alice", "job-a #1 failed", "job-a", IMNotificationPriority.URGENT));
+        assertTrue(dispatch("alice", "job-a #2 started", "job-a", IMNotificationPriority.LOW));
+        assertEquals(1, this.dispatcher.getDroppedCount());
+        assertEquals(3, this.dispatcher.getQueueSize());
+
+        this.connection.go();
+        assertEquals("first", this.connection.next());
+        assertEquals("job-a #1 failed", this.connection.next());
+        assertEquals("job-a #1 started for bob", this.connection.next());
+        assertEquals("job-a #2 started", this.connection.next());
+        assertNull(this.connection.next(200));
+    }
+
+    @Test
+    public void digestsSupersedeNothing() throws Exception
+    {
+        start(10, IMOverflowPolicy.DISCARD_NEWEST);
+        assertTrue(dispatch("alice", "digest 1", IMDigester.DIGEST_SOURCE, IMNotificationPriority.LOW));
+        assertTrue(dispatch("alice", "digest 2", IMDigester.DIGEST_SOURCE, IMNotificationPriority.LOW));
+        assertEquals(0, this.dispatcher.getDroppedCount());
+
+        this.connection.go();
+        assertEquals("first", this.connection.next());
+        assertEquals("digest 1", this.connection.next());
+        assertEquals("digest 2", this.connection.next());
+    }
+
+    /**
+     * Starts a dispatcher with one worker, and keeps the worker busy sending a first notification.
+     */
+    private void start(final int capacity, final IMOverflowPolicy overflowPolicy) throws Exception
+    {
+        this.dispatcher = new IMNotificationDispatcher("dispatcher test", this.provider, 1, capacity, overflowPolicy,
+                1, 0, null, null, null);
+        assertTrue(dispatch("alice", "first", "job-x", IMNotificationPriority.NORMAL));
+        assertTrue(this.connection.awaitSending());
+    }
+
+    private boolean dispatch(final String to, final String text, final String source,
+            final IMNotificationPriority priority)
+    {
+        return this.dispatcher.dispatch(Collections.singletonList(
+                new IMNotification(new DefaultIMMessageTarget(to), text, source, priority)));
+    }
+}
@@ -0,0 +1,203 @@
+package hudson.plugins.sametime.im;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the journal on disk: what is replayed, when segments rotate and which of them are deleted.
+ */
+public class IMOutboxTest
+{
+    private File directory;
+    private IMOutbox outbox;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.directory = File.createTempFile("outbox", "");
+        assertTrue(this.directory.delete());
+        this.outbox = new IMOutbox(this.directory);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.outbox.close();
+        final File[] files = this.directory.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void replaysWhatIsNotDone() throws IOException
+    {
+        assertTrue(this.outbox.open().isEmpty());
+        final long[] ids = this.outbox.append(Arrays.asList(
+                new IMNotification(new DefaultIMMessageTarget("alice"), "job-a failed", "job-a", IMNotificationPriority.URGENT),
+                new IMNotification(new GroupChatIMMessageTarget("builds"), "job-a failed", "job-a"),
+                new IMNotification(new AnnouncementIMMessageTarget(Arrays.asList("bob", "carol")), "job-b started", null,
+                        IMNotificationPriority.LOW)));
+        this.outbox.markDone(ids[1]);
+        assertEquals(2, this.outbox.getPendingCount());
+        this.outbox.close();
+
+        final List<IMOutbox.Entry> replayed = reopen();
+        assertEquals(2, replayed.size());
+        final IMNotification first = replayed.get(0).getNotification();
+        assertEquals(ids[0], replayed.get(0).getId());
+        assertEquals(new DefaultIMMessageTarget("alice"), first.getTarget());
+        assertEquals("job-a failed", first.getText());
+        assertEquals("job-a", first.getSource());
+        assertEquals(IMNotificationPriority.URGENT, first.getPriority());
+        final IMNotification third = replayed.get(1).getNotification();
+        assertEquals(ids[2], replayed.get(1).getId());
+        assertEquals(new AnnouncementIMMessageTarget(Arrays.asList("bob", "carol")), third.getTarget());
+        assertEquals(null, third.getSource());
+        assertEquals(IMNotificationPriority.LOW, third.getPriority());
+        assertTrue("new ids follow the replayed ones", append("later") > ids[2]);
+    }
+
+    @Test
+    public void rotatesFullSegments() throws IOException
+    {
+        this.outbox.open();
+        assertEquals(Collections.singletonList(segment(1)), segments());
+        append(segmentSizedText());
+        assertEquals(Arrays.asList(segment(1), segment(2)), segments());
+        append("small");
+        assertEquals(Arrays.asList(segment(1), segment(2)), segments());
+    }
+
+    @Test
+    public void deletesOnlyAPrefixOfDoneSegments() throws IOException
+    {
+        this.outbox.open();
+        final long first = append(segmentSizedText());
+        final long second = append(segmentSizedText());
+        assertEquals(Arrays.asList(segment(1), segment(2), segment(3)), segments());
+
+        // segment 2 is done, but segment 1 may still need the done records in it
+        this.outbox.markDone(second);
+        assertEquals(Arrays.asList(segment(1), segment(2), segment(3)), segments());
+
+        this.outbox.markDone(first);
+        assertEquals(Collections.singletonList(segment(3)), segments());
+        assertEquals(0, this.outbox.getPendingCount());
+        this.outbox.close();
+
+        assertTrue(reopen().isEmpty());
+        assertEquals(Collections.singletonList(segment(4)), segments());
+    }
+
+    @Test
+    public void replaysUpToATruncatedRecord() throws IOException
+    {
+        this.outbox.open();
+        final long first = append("job-a failed");
+        final long second = append("job-b failed");
+        this.outbox.close();
+
+        // a crash in the middle of writing the last record
+        final RandomAccessFile file = new RandomAccessFile(new File(this.directory, segment(1)), "rw");
+        try
+        {
+            file.setLength(file.length() - 3);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        final List<IMOutbox.Entry> replayed = reopen();
+        assertEquals(1, replayed.size());
+        assertEquals(first, replayed.get(0).getId());
+        assertEquals("job-a failed", replayed.get(0).getNotification().getText());
+        assertTrue("the id of the cut off record is not used again", append("job-c failed") > second);
+    }
+
+    @Test
+    public void keepsWhatIsMarkedDoneAfterClosing() throws IOException
+    {
+        this.outbox.open();
+        final long id = append("in flight at shutdown");
+        this.outbox.close();
+        this.outbox.markDone(id);
+
+        final List<IMOutbox.Entry> replayed = reopen();
+        assertEquals(1, replayed.size());
+        assertEquals(id, replayed.get(0).getId());
+        assertFalse(segments().isEmpty());
+    }
+
+    @Test
+    public void journalsABatchWholeOrNotAtAll() throws IOException
+    {
+        this.outbox.open();
+        final char[] name = new char[65535];
+        Arrays.fill(name, 'x');
+        try
+        {
+            this.outbox.append(Arrays.asList(
+                    new IMNotification(new DefaultIMMessageTarget("alice"), "job-a failed", "job-a"),
+                    new IMNotification(new DefaultIMMessageTarget(new String(name)), "job-a failed", "job-a")));
+            fail("the second target is too long to journal");
+        }
+        catch (final IOException e)
+        {
+            // expected
+        }
+        assertEquals(0, this.outbox.getPendingCount());
+        assertTrue(reopen().isEmpty());
+    }
+
+    private List<IMOutbox.Entry> reopen() throws IOException
+    {
+        this.outbox.close();
+        this.outbox = new IMOutbox(this.directory);
+        return this.outbox.open();
+    }
+
+    private long append(final String text) throws IOException
+    {
+        return this.outbox.append(Collections.singletonList(
+                new IMNotification(new DefaultIMMessageTarget("alice"), text, "job")))[0];
+    }
+
+    private static String segmentSizedText()
+    {
+        final char[] text = new char[(int) IMOutbox.SEGMENT_SIZE];
+        Arrays.fill(text, 'x');
+        return new String(text);
+    }
+
+    private List<String> segments()
+    {
+        final String[] names = this.directory.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static String segment(final int number)
+    {
+        return String.format("outbox-%08d.log", number);
+    }
+}
@@ -0,0 +1,82 @@
+package hudson.plugins.sametime.im;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests in which order queued messages leave the rate limiter.
+ */
+public class IMRateLimiterTest
+{
+    private final IMRateLimiter limiter = new IMRateLimiter("rate limiter test");
+    private final RecordingIMConnection connection = new RecordingIMConnection();
+
+    @After
+    public void tearDown()
+    {
+        this.connection.go();
+        this.limiter.shutdown();
+    }
+
+    @Test
+    public void sendsDirectlyWithoutLimits()
+    {
+        assertSame(this.connection, this.limiter.through(this.connection));
+    }
+
+    @Test
+    public void queuedMessagesLeaveByPriorityThenAge() throws Exception
+    {
+        this.limiter.setLimits(6000, 0);
+        final IMConnection limited = this.limiter.through(this.connection);
+        limited.send(notification("alice", "first", IMNotificationPriority.NORMAL));
+        // the sender is stuck in the first send while the others queue up
+        assertTrue(this.connection.awaitSending());
+        limited.send(notification("bob", "low", IMNotificationPriority.LOW));
+        limited.send(notification("carol", "normal 1", IMNotificationPriority.NORMAL));
+        limited.send(notification("dave", "urgent", IMNotificationPriority.URGENT));
+        limited.send(notification("erin", "normal 2", IMNotificationPriority.NORMAL));
+        assertEquals(4, this.limiter.getQueueSize());
+
+        this.connection.go();
+        assertEquals("first", this.connection.next());
+        assertEquals("urgent", this.connection.next());
+        assertEquals("normal 1", this.connection.next());
+        assertEquals("normal 2", this.connection.next());
+        assertEquals("low", this.connection.next());
+    }
+
+    @Test
+    public void recipientOverItsLimitDoesNotHoldUpOthers() throws Exception
+    {
+        this.connection.go();
+        // a burst of one, then one message every ten seconds
+        this.limiter.setLimits(0, 6);
+        final IMConnection limited = this.limiter.through(this.connection);
+        limited.send(notification("alice", "alice 1", IMNotificationPriority.NORMAL));
+        final IMDelivery waiting = limited.send(notification("alice", "alice 2", IMNotificationPriority.NORMAL));
+        limited.send(notification("bob", "bob 1", IMNotificationPriority.LOW));
+
+        assertEquals("alice 1", this.connection.next());
+        assertEquals("bob 1", this.connection.next());
+        assertNull(this.connection.next(500));
+        assertEquals(1, this.limiter.getQueueSize());
+        assertFalse(waiting.isDone());
+
+        this.limiter.shutdown();
+        assertTrue(waiting.isDone());
+        assertFalse(waiting.isDelivered());
+        assertEquals("rate limiter stopped", waiting.getFailureReason());
+    }
+
+    private static IMNotification notification(final String to, final String text, final IMNotificationPriority priority)
+    {
+        return new IMNotification(new DefaultIMMessageTarget(to), text, "job", priority);
+    }
+}
@@ -0,0 +1,54 @@
+package hudson.plugins.sametime.im;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the bucket against a clock of its own.
+ */
+public class IMTokenBucketTest
+{
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void allowsABurstUpToItsCapacity()
+    {
+        final IMTokenBucket bucket = new IMTokenBucket(60, 3, 0);
+        for (int i = 0; i < 3; i++)
+        {
+            assertEquals(0, bucket.delay(0));
+            bucket.take();
+        }
+        assertTrue(bucket.delay(0) > 0);
+    }
+
+    @Test
+    public void refillsAtTheSteadyRate()
+    {
+        final IMTokenBucket bucket = new IMTokenBucket(60, 1, 0);
+        bucket.take();
+        final long delay = bucket.delay(0);
+        assertTrue("one token a second, was " + delay, Math.abs(delay - SECOND) < TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(bucket.delay(SECOND / 2) > 0);
+        assertEquals(0, bucket.delay(SECOND + TimeUnit.MILLISECONDS.toNanos(1)));
+    }
+
+    @Test
+    public void neverHoldsMoreThanItsCapacity()
+    {
+        final IMTokenBucket bucket = new IMTokenBucket(60, 2, 0);
+        bucket.take();
+        bucket.take();
+        assertFalse(bucket.isFull(0));
+        final long muchLater = 100 * SECOND;
+        assertTrue(bucket.isFull(muchLater));
+        bucket.take();
+        bucket.take();
+        assertTrue(bucket.delay(muchLater) > 0);
+    }
+}
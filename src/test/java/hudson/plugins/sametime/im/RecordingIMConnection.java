@@ -0,0 +1,74 @@
+package hudson.plugins.sametime.im;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection for tests that records the texts sent, and delivers them. It holds up every send
+ * until {@link #go()} is called, so that what is sent after the first one queues up meanwhile.
+ */
+class RecordingIMConnection implements IMConnection
+{
+    private final BlockingQueue<String> sent = new LinkedBlockingQueue<String>();
+    private final CountDownLatch sending = new CountDownLatch(1);
+    private final CountDownLatch go = new CountDownLatch(1);
+
+    public IMDelivery send(final IMNotification notification) throws IMException
+    {
+        this.sending.countDown();
+        try
+        {
+            this.go.await();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        this.sent.add(notification.getText());
+        final IMDelivery delivery = new IMDelivery(notification);
+        delivery.succeed();
+        return delivery;
+    }
+
+    public void setPresence(final IMPresence presence)
+    {
+    }
+
+    public void close()
+    {
+    }
+
+    /**
+     * Lets the sends through.
+     */
+    void go()
+    {
+        this.go.countDown();
+    }
+
+    /**
+     * @return true once the first send has started
+     */
+    boolean awaitSending() throws InterruptedException
+    {
+        return this.sending.await(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the text sent next, or null if nothing is sent within five seconds
+     */
+    String next() throws InterruptedException
+    {
+        return next(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    /**
+     * @return the text sent next, or null if nothing is sent in time
+     */
+    String next(final long timeoutMillis) throws InterruptedException
+    {
+        return this.sent.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Hudson Sametime Plugin
+ */
+package hudson.plugins.sametime.im.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests how recipients are spread over the logins of a SametimeConnectionPool.
+ */
+public class SametimeHashRingTest
+{
+    private static final int RECIPIENTS = 3000;
+
+    @Test
+    public void emptyRingHasNoOwner()
+    {
+        assertNull(new SametimeHashRing<String>().ownerOf("alice"));
+        assertTrue(new SametimeHashRing<String>().walk("alice").isEmpty());
+    }
+
+    @Test
+    public void recipientsKeepTheirLoginWhateverTheCaseOrTheOrderOfTheLogins()
+    {
+        final SametimeHashRing<String> ring = ring("bot1", "bot2", "bot3");
+        final SametimeHashRing<String> reordered = ring("bot3", "bot1", "bot2");
+        for (int i = 0; i < RECIPIENTS; i++)
+        {
+            final String recipient = "user" + i;
+            assertEquals(ring.ownerOf(recipient), ring.ownerOf(" " + recipient.toUpperCase() + " "));
+            assertEquals(ring.ownerOf(recipient), reordered.ownerOf(recipient));
+        }
+    }
+
+    @Test
+    public void spreadsRecipientsOverAllLogins()
+    {
+        final SametimeHashRing<String> ring = ring("bot1", "bot2", "bot3");
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < RECIPIENTS; i++)
+        {
+            final String owner = ring.ownerOf("user" + i);
+            counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+        }
+        assertEquals(3, counts.size());
+        for (final Map.Entry<String, Integer> count : counts.entrySet())
+        {
+            // a third each, give or take what 64 points per login allow
+            assertTrue(count.toString(), count.getValue() > RECIPIENTS / 6 && count.getValue() < RECIPIENTS / 2);
+        }
+    }
+
+    @Test
+    public void addingALoginOnlyMovesRecipientsToIt()
+    {
+        final SametimeHashRing<String> before = ring("bot1", "bot2", "bot3");
+        final SametimeHashRing<String> after = ring("bot1", "bot2", "bot3", "bot4");
+        int moved = 0;
+        for (int i = 0; i < RECIPIENTS; i++)
+        {
+            final String recipient = "user" + i;
+            final String owner = after.ownerOf(recipient);
+            if (!owner.equals(before.ownerOf(recipient)))
+            {
+                assertEquals("bot4", owner);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > 0 && moved < RECIPIENTS / 2);
+    }
+
+    @Test
+    public void walkStartsWithTheOwnerAndVisitsEveryLoginOnce()
+    {
+        final SametimeHashRing<String> ring = ring("bot1", "bot2", "bot3");
+        for (int i = 0; i < 100; i++)
+        {
+            final List<String> walk = ring.walk("user" + i);
+            assertEquals(ring.ownerOf("user" + i), walk.get(0));
+            assertEquals(new HashSet<String>(Arrays.asList("bot1", "bot2", "bot3")), new HashSet<String>(walk));
+            assertEquals(3, walk.size());
+        }
+    }
+
+    @Test
+    public void nextLoginTakesOverFromALostOne()
+    {
+        final SametimeHashRing<String> all = ring("bot1", "bot2", "bot3");
+        final SametimeHashRing<String> withoutBot2 = ring("bot1", "bot3");
+        for (int i = 0; i < RECIPIENTS; i++)
+        {
+            final String recipient = "user" + i;
+            final List<String> walk = all.walk(recipient);
+            final String takesOver = walk.get(0).equals("bot2") ? walk.get(1) : walk.get(0);
+            assertEquals(withoutBot2.ownerOf(recipient), takesOver);
+        }
+    }
+
+    private static SametimeHashRing<String> ring(final String... logins)
+    {
+        final SametimeHashRing<String> ring = new SametimeHashRing<String>();
+        for (final String login : logins)
+        {
+            ring.add(login, login);
+        }
+        return ring;
+    }
+}